@@ -0,0 +1,77 @@
+package de.cavus700.customizableedittext;
+
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class CustomizableEditTextTest {
+    @Test
+    public void replaceContent_withSameText_tracksTypingAfterCancelledLoad() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                CustomizableEditText view = new CustomizableEditText(InstrumentationRegistry.getTargetContext());
+                view.setText("<b>one</b> two");
+                view.setTextAsync("other", null);
+                //Ignored like every change while the text is loading
+                view.getText().append("!");
+                view.replaceContent("<b>one</b> two");
+
+                assertEquals("one two", view.getText().toString());
+                view.getText().append(" three");
+                assertEquals("<b>one</b> two three", view.getPlainText());
+            }
+        });
+    }
+
+    @Test
+    public void paste_plainText_isNotParsedAsHtml() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Context context = InstrumentationRegistry.getTargetContext();
+                ClipboardManager clipboard = (ClipboardManager) context.getSystemService(Context.CLIPBOARD_SERVICE);
+                clipboard.setPrimaryClip(ClipData.newPlainText(null, "a</b><font color=\"red\">b"));
+                CustomizableEditText view = new CustomizableEditText(context);
+                view.setText("<b>one</b>");
+                view.setSelection(3);
+                view.onTextContextMenuItem(android.R.id.paste);
+
+                assertEquals("onea</b><font color=\"red\">b", view.getText().toString());
+            }
+        });
+    }
+
+    @Test
+    public void onSaveInstanceState_deletesFileOfPreviousState() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                CustomizableEditText view = new CustomizableEditText(InstrumentationRegistry.getTargetContext());
+                //Too large for the parcel, so it is saved to a file
+                StringBuilder html = new StringBuilder();
+                for(int iLine = 0; iLine < 20000; ++iLine)
+                    html.append("<b>line</b> ").append(iLine).append("<br/>");
+                view.setText(html.toString());
+
+                CustomizableEditText.SavedState first = (CustomizableEditText.SavedState) view.onSaveInstanceState();
+                assertNotNull(first.snapshotPath);
+                assertTrue(new File(first.snapshotPath).exists());
+                view.setText("small");
+                CustomizableEditText.SavedState second = (CustomizableEditText.SavedState) view.onSaveInstanceState();
+                assertNotNull(second.snapshot);
+                assertFalse(new File(first.snapshotPath).exists());
+            }
+        });
+    }
+}
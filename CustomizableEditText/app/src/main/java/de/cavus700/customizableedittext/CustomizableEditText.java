@@ -1,421 +1,956 @@
 package de.cavus700.customizableedittext;
 
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.Trace;
 import android.support.v7.widget.AppCompatEditText;
 import android.text.Editable;
 import android.text.Html;
+import android.text.Layout;
+import android.text.Spanned;
 import android.text.TextWatcher;
+import android.text.method.KeyListener;
+import android.text.style.CharacterStyle;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
 import android.util.AttributeSet;
+import android.view.ViewTreeObserver;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
 
+import de.cavus700.customizableedittext.model.DocumentSnapshot;
+import de.cavus700.customizableedittext.model.HTMLDocument;
+import de.cavus700.customizableedittext.model.Match;
+import de.cavus700.customizableedittext.model.Metric;
+import de.cavus700.customizableedittext.model.MetricsListener;
+import de.cavus700.customizableedittext.model.PendingTextChange;
+import de.cavus700.customizableedittext.model.SegmentedDocument;
+import de.cavus700.customizableedittext.model.Span;
+import de.cavus700.customizableedittext.model.SpanType;
+
 public class CustomizableEditText extends AppCompatEditText implements TextWatcher {
-    public enum SpanType{bold, underline, italic, color}
+    /**
+     * Called on the main thread when a text of {@link #setTextAsync(String, OnTextLoadedListener)} is shown
+     */
+    public interface OnTextLoadedListener{
+        void onTextLoaded();
+    }
+
+    //Shared by all instances, loads are short and one after another is enough
+    private static ExecutorService sLoadExecutor;
+    //Section names for android.os.Trace, built once
+    private static final String[] TRACE_SECTIONS = new String[Metric.values().length];
+    static {
+        for(Metric metric: Metric.values())
+            TRACE_SECTIONS[metric.ordinal()] = "CustomizableEditText." + metric.name();
+    }
+    //Bigger snapshots are written to a file, a Binder transaction has 1 MB for everything in it
+    private static final int MAX_PARCEL_SNAPSHOT_SIZE = 128 * 1024;
+    //Prefix of the snapshot files in the cache directory
+    private static final String SNAPSHOT_FILE_PREFIX = "CustomizableEditText";
+    //A snapshot file of a state which was never restored is deleted after this time
+    private static final long MAX_SNAPSHOT_FILE_AGE = 24 * 60 * 60 * 1000L;
+    //True once old snapshot files of earlier processes were cleaned up
+    private static boolean isSnapshotCacheCleaned = false;
 
-    private ArrayList<HTMLElement> mHtmlElements;
-    private String[] mSupportedTags = {"<b>", "</b>", "<u>", "</u>", "<i>", "</i>", "<font color=\".*\">", "</font>"};
+    private HTMLDocument mDocument = new HTMLDocument();
     private boolean isTextWatcherActivated = false;
+    private boolean isIncrementalRenderingEnabled = true;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Future<?> mLoadTask;
+    //Incremented for every load, a finished load is only shown if no newer one was started
+    private int mLoadGeneration = 0;
+    //Snapshot file of the last saved state which was not restored yet
+    private File mSnapshotFile;
+    //Forwards to the listener of the user and to android.os.Trace, null if metrics are disabled
+    private MetricsListener mMetricsListener;
+    //Style of typed text, see setTypingStyle
+    private final EnumSet<SpanType> mTypingStyles = EnumSet.noneOf(SpanType.class);
+    private String mTypingColor;
+    //Spans of the Editable which grow with the text typed in the typing style
+    private final ArrayList<Object> mTypingSpans = new ArrayList<>();
+    //Text changes which are not applied to the document yet, see flushTextChanges
+    private final PendingTextChange mPendingChange = new PendingTextChange();
+    private boolean isInBatchEdit = false;
+    //Parsed and rendered texts of setText, may be shared with other views
+    private SpannedCache mSpannedCache;
+    private boolean isReadOnly = false;
+    //Key listener and input type of the editable view, restored when the view is no longer read-only
+    private KeyListener mEditKeyListener;
+    private int mEditInputType;
+    //Texts of setText which are at least this long are shown before they are parsed, see setLargeTextThreshold
+    private int mLargeTextThreshold = Integer.MAX_VALUE;
+    //Backs the view instead of mDocument while a large text is shown, null otherwise
+    private SegmentedDocument mSegmentedDocument;
+    private final Rect mVisibleRect = new Rect();
+    //Scrolling of this view or of a parent like a ScrollView shows other paragraphs of a large text
+    private final ViewTreeObserver.OnScrollChangedListener mScrollListener = new ViewTreeObserver.OnScrollChangedListener() {
+        @Override
+        public void onScrollChanged() {
+            renderVisibleText();
+        }
+    };
+    private final Runnable mRenderVisibleText = new Runnable() {
+        @Override
+        public void run() {
+            renderVisibleText();
+        }
+    };
 
     public CustomizableEditText(Context context) {
         super(context);
+        addTextChangedListener(this);
+        cleanOldSnapshotFiles(context);
     }
 
     public CustomizableEditText(Context context, AttributeSet attrs) {
         super(context, attrs);
+        addTextChangedListener(this);
+        cleanOldSnapshotFiles(context);
     }
 
     public CustomizableEditText(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        addTextChangedListener(this);
+        cleanOldSnapshotFiles(context);
     }
 
+    /**
+     * Changes are only collected here. An IME replaces the composed word again and again, so changes which
+     * overlap are merged into one range and applied to the document in {@link #flushTextChanges()}.
+     */
     @Override
     public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        //Do nothing if we are not initialized
+        if(!isTextWatcherActivated)
+            return;
 
+        //Changes somewhere else can't be merged without replacing the formatted text between them
+        if(mPendingChange.isSeparate(start, count))
+            flushTextChanges();
+        mPendingChange.beforeChange(s, start, count);
     }
 
     @Override
     public void onTextChanged(CharSequence s, int start, int before, int count) {
-        //Do nothing if we are not initialized
-        if(!isTextWatcherActivated)
+        if(!isTextWatcherActivated || !mPendingChange.isPending())
+            return;
+
+        mPendingChange.afterChange(before, count);
+        if(count > 0 && !mTypingStyles.isEmpty())
+            extendTypingSpans(start, start + count);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        //An IME sends its changes in a batch edit, they are applied at its end
+        if(!isInBatchEdit)
+            flushTextChanges();
+    }
+
+    @Override
+    public void onBeginBatchEdit() {
+        super.onBeginBatchEdit();
+        isInBatchEdit = true;
+    }
+
+    @Override
+    public void onEndBatchEdit() {
+        super.onEndBatchEdit();
+        isInBatchEdit = false;
+        flushTextChanges();
+    }
+
+    /**
+     * Apply the collected text changes to the document as one change. Only the part between the common
+     * prefix and suffix of the old and the new text is replaced, so the formatting around it stays.
+     */
+    private void flushTextChanges(){
+        if(!mPendingChange.isPending())
             return;
+        Editable editable = getText();
+        if(editable == null){
+            mPendingChange.clear();
+            return;
+        }
 
-        HTMLText htmlText = getElementForPosition(start);
+        long startTime = startMetric(Metric.textChanged);
         //We have no HTMLText so create it
-        if(mHtmlElements == null || mHtmlElements.size() == 0){
-            if(mHtmlElements == null)
-                mHtmlElements = new ArrayList<>();
-            mHtmlElements.add(new HTMLText(s.toString()));
+        if(mSegmentedDocument == null && mDocument.isEmpty()){
+            mPendingChange.clear();
+            mDocument.addText(editable.toString(), 0, mTypingStyles, mTypingColor);
+            finishMetric(Metric.textChanged, startTime, editable.length());
             return;
         }
 
-        removeText(start, start + before);
-        addText(s.subSequence(start, start + count).toString(), start);
+        mPendingChange.finish(editable);
+        int start = mPendingChange.getStart();
+        int end = mPendingChange.getOldEnd();
+        String text = editable.subSequence(start, mPendingChange.getNewEnd()).toString();
+        if(mSegmentedDocument != null)
+            changeLargeText(start, end, text);
+        else{
+            mDocument.removeText(start, end);
+            mDocument.addText(text, start, mTypingStyles, mTypingColor);
+        }
+        finishMetric(Metric.textChanged, startTime, text.length());
+    }
+
+    /**
+     * Replace [start, end) of the large text, the view already shows the change.
+     * Paragraphs which are parsed for the change and the new text get their spans from the model.
+     */
+    private void changeLargeText(int start, int end, String text){
+        List<int[]> parsed = mSegmentedDocument.parse(start, end);
+        mSegmentedDocument.removeText(start, end);
+        if(!text.isEmpty())
+            mSegmentedDocument.addText(text, start);
+        //The spans of the view don't have to agree with the model at paragraph boundaries, so the new text is rendered too
+        int renderStart = start;
+        int renderEnd = start + text.length();
+        if(!parsed.isEmpty()){
+            int growth = text.length() - (end - start);
+            renderStart = parsed.get(0)[0];
+            renderEnd = Math.max(renderEnd, moveOffset(parsed.get(parsed.size() - 1)[1], start, end, growth));
+        }
+        if(renderStart >= renderEnd)
+            return;
+        for(SpanType type: SpanType.values())
+            updateSpans(renderStart, renderEnd, type);
+    }
+
+    /**
+     * Initialize CustomizableEditText with text which only contains the supproted tags.
+     * In the best case only text got with {@link #getPlainText()}
+     * @param text Text to initialize
+     */
+    public void setText(String text){
+        cancelLoad();
+        mPendingChange.clear();
+        isTextWatcherActivated = false;
+        mSegmentedDocument = null;
+        if(text == null || text.length() == 0) {
+            mDocument.setText(text);
+        }
+        else if(text.length() >= mLargeTextThreshold) {
+            showLargeText(text);
+        }
+        else if(!showCachedText(text)) {
+            mDocument.setText(text);
+            Spanned spanned = updateText();
+            if(mSpannedCache != null)
+                mSpannedCache.put(text, mDocument, spanned);
+        }
+        isTextWatcherActivated = true;
+    }
+
+    /**
+     * Show the visible text without parsing it, the paragraphs are parsed and get their spans when they become
+     * visible in {@link #renderVisibleText()}
+     */
+    private void showLargeText(String text){
+        mDocument.setText((String) null);
+        mSegmentedDocument = new SegmentedDocument();
+        mSegmentedDocument.setText(text);
+        long startTime = startMetric(Metric.render);
+        showText(mSegmentedDocument.getVisibleText());
+        finishMetric(Metric.render, startTime, length());
+        //The layout of the new text is known after the next layout pass
+        post(mRenderVisibleText);
+    }
+
+    /**
+     * Show texts of {@link #setText(String)} which are at least length characters long before they are parsed.
+     * Only the paragraphs which become visible or are edited are parsed and get their spans, so loading time and
+     * memory grow with the part of the text which is used. Typing, {@link #addSpan(int, int, SpanType, String)}
+     * and saving work on the paragraphs. Other operations like paste, find, undo or removing spans parse the rest
+     * of the text once and leave this mode, changes before that can't be undone. Disabled by default.
+     * @param length Minimal length of the HTML, {@link Integer#MAX_VALUE} to disable it
+     */
+    public void setLargeTextThreshold(int length){
+        mLargeTextThreshold = length;
+    }
+
+    /**
+     * Parse the paragraphs of a large text which are visible on the screen and show their spans
+     */
+    private void renderVisibleText(){
+        Layout layout = getLayout();
+        //Positions of a pending change are not applied to the document yet, it is rendered when it is flushed
+        if(mSegmentedDocument == null || layout == null || mPendingChange.isPending() || !getLocalVisibleRect(mVisibleRect))
+            return;
+        int offset = getScrollY() - getTotalPaddingTop();
+        int start = layout.getLineStart(layout.getLineForVertical(mVisibleRect.top + offset));
+        int end = layout.getLineEnd(layout.getLineForVertical(mVisibleRect.bottom + offset));
+        for(int[] range: mSegmentedDocument.parse(start, end)){
+            for(SpanType type: SpanType.values())
+                updateSpans(range[0], range[1], type);
+        }
+    }
+
+    /**
+     * Leave the large text mode for operations which need the whole document, the rest of the text is parsed
+     * and rendered once. Pending text changes are applied in any case.
+     */
+    private void parseWholeText(){
+        flushTextChanges();
+        if(mSegmentedDocument == null)
+            return;
+        String html = mSegmentedDocument.getPlainText();
+        mSegmentedDocument = null;
+        mDocument.setText(html);
+        updateTextKeepSelection();
     }
 
     @Override
-    public void afterTextChanged(Editable s) {
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        getViewTreeObserver().addOnScrollChangedListener(mScrollListener);
+    }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        getViewTreeObserver().removeOnScrollChangedListener(mScrollListener);
+        removeCallbacks(mRenderVisibleText);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        renderVisibleText();
     }
 
     /**
-     * Is called from TextWatcher if new text is entered
+     * @return False if the text is not in the cache
      */
-    private void addText(String textToAdd, int start){
-        HTMLText htmlText = getElementForPosition(start);
-        boolean isEndOfText = htmlText.getText().length() == getPosInHtmlTextElement(start);
+    private boolean showCachedText(String text){
+        SpannedCache.Entry entry = mSpannedCache != null ? mSpannedCache.get(text) : null;
+        if(entry == null)
+            return false;
+        try {
+            mDocument.setText(DocumentSnapshot.fromBytes(entry.snapshot));
+        } catch (IOException e) {
+            //Written by the cache, so it never happens
+            return false;
+        }
+        showText(entry.spanned);
+        return true;
+    }
 
-        int indexOfTextElement = mHtmlElements.indexOf(htmlText);
-        //Has next element
-        boolean isNextElementClosingTag = indexOfTextElement < mHtmlElements.size() - 1 &&
-            //Is next element closing tag and
-            (!mHtmlElements.get(indexOfTextElement+1).isOpenTag() &&
-                //Is next element no text element
-                !(mHtmlElements.get(indexOfTextElement+1)instanceof HTMLText));
+    /**
+     * Let {@link #setText(String)} take texts which were set before from the cache instead of parsing and
+     * rendering them again. Share one cache between the views of a list to make scrolling back fast.
+     * @param cache May be null to parse every text
+     */
+    public void setSpannedCache(SpannedCache cache){
+        mSpannedCache = cache;
+    }
 
-        if(isEndOfText && isNextElementClosingTag) {
-            //We have to add a new text element here
-            //Example: <i><b>Hello</b></i> if user adds text after "Hello" it will be inserted between the tags
-            //We don't want this so we have to create a new text element after the last closing tag.
-            HTMLElement tmpElement;
-            for (int iIndex = mHtmlElements.indexOf(htmlText) + 1; iIndex < mHtmlElements.size(); ++iIndex) {
-                tmpElement = mHtmlElements.get(iIndex);
-                //HTMLText elements are returning false for isOpenTag()
-                if ((tmpElement instanceof HTMLText) || tmpElement.isOpenTag()) {
-                    htmlText = new HTMLText(textToAdd);
-                    mHtmlElements.add(iIndex, htmlText);
-                    return;
-                }
-            }
-            //Current element was only followed by closing tags so append element to list
-            htmlText = new HTMLText(textToAdd);
-            mHtmlElements.add(htmlText);
+    /**
+     * Show the text without letting the user edit it, e.g. in the items of a list. The text changes of the
+     * view are not tracked, texts can still be set and formatted with the methods of this class.
+     */
+    public void setReadOnly(boolean readOnly){
+        if(readOnly == isReadOnly)
             return;
+        isReadOnly = readOnly;
+        if(readOnly){
+            flushTextChanges();
+            removeTextChangedListener(this);
+            mEditKeyListener = getKeyListener();
+            mEditInputType = getInputType();
+            setKeyListener(null);
+        }
+        else{
+            setKeyListener(mEditKeyListener);
+            //setKeyListener takes the input type of the listener, which has no flags like multi line
+            setRawInputType(mEditInputType);
+            mEditKeyListener = null;
+            addTextChangedListener(this);
         }
+    }
 
-        String currText = htmlText.getText();
-        String tmp1 = currText.substring(0, getPosInHtmlTextElement(start));
-        String tmp2 = currText.substring(getPosInHtmlTextElement(start), currText.length());
-        htmlText.setText(tmp1 + textToAdd + tmp2);
+    public boolean isReadOnly(){
+        return isReadOnly;
     }
 
     /**
-     * Is called from TextWatcher if text is removed
+     * Show a new version of the text, e.g. after a sync. Unlike {@link #setText(String)} only the changed
+     * characters and spans are replaced, so the cursor, the scroll position and the unchanged spans stay.
+     * The change can be undone in one step.
+     * @param text Text which only contains the supported tags
      */
-    private void removeText(int start, int end){
-        if(start >= end)
+    public void replaceContent(String text){
+        parseWholeText();
+        cancelLoad();
+        Editable editable = getText();
+        if(editable == null || mDocument.isEmpty() || text == null || text.isEmpty()){
+            setText(text);
             return;
+        }
 
-        //Text deleted
-        HTMLText startText = getElementForPosition(start);
-        HTMLText endText = getElementForPosition(end);
+        SpanType[] types = SpanType.values();
+        ArrayList<List<Span>> oldSpans = new ArrayList<>(types.length);
+        for(SpanType type: types)
+            oldSpans.add(mDocument.getSpans(0, editable.length(), type));
+        if(!mDocument.replaceContent(text)){
+            //The view ignored its changes while a cancelled setTextAsync was loading, show the document again
+            if(!isTextWatcherActivated)
+                updateTextKeepSelection();
+            return;
+        }
+        long startTime = startMetric(Metric.render);
+
+        //Replace the text between the common prefix and suffix
+        String newText = mDocument.getVisibleText();
+        int oldLength = editable.length();
+        int newLength = newText.length();
+        int prefix = 0;
+        while(prefix < oldLength && prefix < newLength && editable.charAt(prefix) == newText.charAt(prefix))
+            ++prefix;
+        int suffix = 0;
+        while(suffix < oldLength - prefix && suffix < newLength - prefix &&
+            editable.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix))
+            ++suffix;
+        endTypingSpans();
+        isTextWatcherActivated = false;
+        editable.replace(prefix, oldLength - suffix, newText, prefix, newLength - suffix);
+        isTextWatcherActivated = true;
+        finishMetric(Metric.render, startTime, newLength - prefix - suffix);
 
-        //Text is in only one HTMLText element
-        if(startText == endText){
-            startText.setText(startText.getText().substring(0, getPosInHtmlTextElement(start)) +
-                startText.getText().substring(getPosInHtmlTextElement(end), startText.getText().length()));
+        //Only the spans which differ from the old ones behind the moved text are rendered again
+        int growth = newLength - oldLength;
+        for(int iType = 0; iType < types.length; ++iType){
+            List<Span> before = oldSpans.get(iType);
+            List<Span> after = mDocument.getSpans(0, newLength, types[iType]);
+            int start = prefix;
+            int end = newLength - suffix;
+            int front = 0;
+            while(front < before.size() && front < after.size() &&
+                isSameSpan(before.get(front), after.get(front), prefix, oldLength - suffix, growth))
+                ++front;
+            int back = 0;
+            while(back < before.size() - front && back < after.size() - front &&
+                isSameSpan(before.get(before.size() - 1 - back), after.get(after.size() - 1 - back), prefix, oldLength - suffix, growth))
+                ++back;
+            if(front < after.size() - back){
+                start = Math.min(start, after.get(front).getStart());
+                end = Math.max(end, after.get(after.size() - 1 - back).getEnd());
+            }
+            if(front < before.size() - back){
+                start = Math.min(start, moveOffset(before.get(front).getStart(), prefix, oldLength - suffix, growth));
+                end = Math.max(end, moveOffset(before.get(before.size() - 1 - back).getEnd(), prefix, oldLength - suffix, growth));
+            }
+            if(start < end)
+                updateSpans(start, end, types[iType]);
         }
-        //Text spreads over multiple elements
-        else{
-            start = getPosInHtmlTextElement(start);
-            end = getPosInHtmlTextElement(end);
-            startText.setText(startText.getText().substring(0, start));
-            endText.setText(endText.getText().substring(end, endText.getText().length()));
+    }
 
-            removeElementsBetween(mHtmlElements.indexOf(startText)+1, mHtmlElements.indexOf(endText)-1);
+    /**
+     * @return True if the old span is at the same place as the new one after the text in [start, end) changed
+     */
+    private static boolean isSameSpan(Span oldSpan, Span newSpan, int start, int end, int growth){
+        if(oldSpan.getColor() == null ? newSpan.getColor() != null : !oldSpan.getColor().equals(newSpan.getColor()))
+            return false;
+        return moveOffset(oldSpan.getStart(), start, end, growth) == newSpan.getStart() &&
+            moveOffset(oldSpan.getEnd(), start, end, growth) == newSpan.getEnd();
+    }
+
+    /**
+     * @return Offset in the new text of an old offset after the text in [start, end) changed its length by growth
+     */
+    private static int moveOffset(int offset, int start, int end, int growth){
+        if(offset <= start)
+            return offset;
+        return offset >= end ? offset + growth : start;
+    }
+
+    /**
+     * Like {@link #setText(String)} but the text is parsed and prepared for the view on a background thread.
+     * A load which is still running is cancelled, its listener is never called. Until the text is shown
+     * the old text stays visible and changes to it are ignored.
+     * @param text Text to initialize
+     * @param listener Called when the text is shown, may be null
+     */
+    public void setTextAsync(final String text, final OnTextLoadedListener listener){
+        if(text != null && text.length() >= mLargeTextThreshold){
+            //A large text is only scanned for paragraphs, that's fast enough for the main thread
+            setText(text);
+            if(listener != null)
+                listener.onTextLoaded();
+            return;
         }
+        cancelLoad();
+        isTextWatcherActivated = false;
+        final int generation = mLoadGeneration;
+        mLoadTask = getLoadExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                final HTMLDocument document = new HTMLDocument();
+                document.setMetricsListener(mMetricsListener);
+                document.setText(text);
+                if(Thread.currentThread().isInterrupted())
+                    return;
+                final Spanned spanned = document.isEmpty() ? null : Html.fromHtml(document.toHtml());
+
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        //A newer text was set in the meantime
+                        if(generation != mLoadGeneration)
+                            return;
+                        mLoadTask = null;
+                        mSegmentedDocument = null;
+                        mDocument.setText(document);
+                        showText(spanned);
+                        if(listener != null)
+                            listener.onTextLoaded();
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * Remove HTMLText elements and make sure to only remove tags with corresponding closing or opening tag
-     * @param startIndex First html candidate to be removed
-     * @param endIndex  Last html candidate to be removed
+     * Pasted text is inserted with {@link #insertHtml(String)}, so styled text and HTML keep their formatting
      */
-    private void removeElementsBetween(int startIndex, int endIndex){
-        int iStart = startIndex;
-        int iEnd = endIndex;
-        HTMLElement startEle = mHtmlElements.get(iStart), endEle = mHtmlElements.get(iEnd);
+    @Override
+    public boolean onTextContextMenuItem(int id) {
+        if(id != android.R.id.paste)
+            return super.onTextContextMenuItem(id);
+        String html = getClipboardHtml();
+        if(html == null)
+            return super.onTextContextMenuItem(id);
+        insertHtml(html);
+        return true;
+    }
 
-        while(iStart < iEnd) {
-            //Only increment iStart if we don't found an opening element yet. Keep on searching for an opening tag
-            if (!startEle.isOpenTag()) {
-                startEle = mHtmlElements.get(++iStart);
+    /**
+     * @return The items of the clipboard as HTML with the supported tags or null if there is no styled text
+     */
+    private String getClipboardHtml(){
+        ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        ClipData clip = clipboard != null ? clipboard.getPrimaryClip() : null;
+        if(clip == null)
+            return null;
+        StringBuilder html = new StringBuilder();
+        for(int iItem = 0; iItem < clip.getItemCount(); ++iItem){
+            ClipData.Item item = clip.getItemAt(iItem);
+            CharSequence text = item.getText();
+            //HTML of other apps has more tags than the supported ones, the rendered text only has their styles
+            if(item.getHtmlText() != null)
+                text = Html.fromHtml(item.getHtmlText());
+            if(text == null)
                 continue;
-            }
+            //Plain text has no styles and may contain '<', it is pasted as text like in an EditText
+            if(!(text instanceof Spanned))
+                return null;
+            if(html.length() > 0)
+                html.append('\n');
+            appendHtml(html, (Spanned) text);
+        }
+        return html.length() > 0 ? html.toString() : null;
+    }
 
-            //Wee have an opening element. Look if we have the corresponding closing tag and if so remove both.
-            if (startEle.isOpenTag() && !endEle.isOpenTag() && startEle.getType().equals(endEle.getType())) {
-                mHtmlElements.remove(startEle);
-                mHtmlElements.remove(endEle);
-                //We removed to elements so our end element moved to the front
-                endIndex = endIndex - 2;
-                removeElementsBetween(startIndex, endIndex);
-                return;
-            } else {
-                //End element was not the matching one so keep on searching
-                endEle = mHtmlElements.get(--iEnd);
+    /**
+     * Write the text with the supported tags for its styles
+     */
+    private void appendHtml(StringBuilder html, Spanned text){
+        ArrayList<Span> spans = new ArrayList<>();
+        for(Object style: text.getSpans(0, text.length(), CharacterStyle.class)){
+            int start = text.getSpanStart(style);
+            int end = text.getSpanEnd(style);
+            if(start >= end)
                 continue;
+            if(style instanceof StyleSpan){
+                int typeface = ((StyleSpan) style).getStyle();
+                if((typeface & Typeface.BOLD) != 0)
+                    spans.add(new Span(start, end, SpanType.bold, null));
+                if((typeface & Typeface.ITALIC) != 0)
+                    spans.add(new Span(start, end, SpanType.italic, null));
             }
+            else if(style instanceof UnderlineSpan)
+                spans.add(new Span(start, end, SpanType.underline, null));
+            else if(style instanceof ForegroundColorSpan)
+                spans.add(new Span(start, end, SpanType.color,
+                    String.format("%06x", ((ForegroundColorSpan) style).getForegroundColor() & 0xffffff)));
         }
 
-        //We found no matching element with the current startElement so maybe it does not have a closing one.
-        //Check if we reached the end or just had an start element from the start or the middle
-        if(iStart < endIndex - 1){
-            removeElementsBetween(++iStart, endIndex);
+        //Walk through the starts and ends of the spans, tags of different spans may cross each other
+        ArrayList<Span> ends = new ArrayList<>(spans);
+        Collections.sort(spans, new Comparator<Span>() {
+            @Override
+            public int compare(Span first, Span second) {
+                return first.getStart() - second.getStart();
+            }
+        });
+        Collections.sort(ends, new Comparator<Span>() {
+            @Override
+            public int compare(Span first, Span second) {
+                return first.getEnd() - second.getEnd();
+            }
+        });
+        int pos = 0;
+        int iStart = 0;
+        int iEnd = 0;
+        while(iEnd < ends.size()){
+            int next = iStart < spans.size() ? Math.min(spans.get(iStart).getStart(), ends.get(iEnd).getEnd()) : ends.get(iEnd).getEnd();
+            html.append(text, pos, next);
+            pos = next;
+            while(iEnd < ends.size() && ends.get(iEnd).getEnd() == pos)
+                html.append(HTMLDocument.getTag(ends.get(iEnd++), false));
+            while(iStart < spans.size() && spans.get(iStart).getStart() == pos)
+                html.append(HTMLDocument.getTag(spans.get(iStart++), true));
         }
+        html.append(text, pos, text.length());
     }
 
     /**
-     * Initialize CustomizableEditText with text which only contains the supproted tags.
-     * In the best case only text got with {@link #getPlainText()}
-     * @param text Text to initialize
+     * Replace the selection with HTML like a paste, e.g. text copied from another CustomizableEditText.
+     * Only the HTML is parsed and only the inserted text is rendered. It can be undone in one step.
+     * @param html Text with the supported tags, tags which are not closed end at its end
      */
-    public void setText(String text){
-        isTextWatcherActivated = false;
-        mHtmlElements = new ArrayList<>();
-        if(text != null && text.length() > 0) {
-            text = text.replaceAll("<br/>", "\n");
-            mHtmlElements.add(new HTMLText(text));
+    public void insertHtml(String html){
+        parseWholeText();
+        Editable editable = getText();
+        if(editable == null)
+            return;
+        int start = Math.max(0, Math.min(getSelectionStart(), getSelectionEnd()));
+        int end = Math.max(0, Math.max(getSelectionStart(), getSelectionEnd()));
+        int oldLength = mDocument.length();
+        boolean changedOutside = mDocument.insertHtml(html, start, end);
+        int insertedEnd = end + mDocument.length() - oldLength;
 
-            parseText();
+        long startTime = startMetric(Metric.render);
+        endTypingSpans();
+        isTextWatcherActivated = false;
+        editable.replace(start, end, mDocument.getVisibleText(start, insertedEnd));
+        isTextWatcherActivated = true;
+        finishMetric(Metric.render, startTime, insertedEnd - start);
+        if(changedOutside || !isIncrementalRenderingEnabled)
             updateText();
+        else{
+            for(SpanType type: SpanType.values())
+                updateSpans(start, insertedEnd, type);
+        }
+        setSelection(Math.min(insertedEnd, length()));
+    }
+
+    /**
+     * Find a pattern in the text, e.g. for a search bar. Matches may cross formatted parts of the text.
+     * @return Matches ordered by start
+     */
+    public List<Match> find(Pattern pattern){
+        parseWholeText();
+        return mDocument.find(pattern);
+    }
+
+    /**
+     * Replace all matches of a pattern with one change of the document, only the range from the first to the
+     * last match is rendered again. A replacement gets the style of the first character it replaces, the
+     * formatting around the matches stays. It can be undone in one step.
+     * @param replacement Replacement like the one of {@link java.util.regex.Matcher#replaceAll(String)}
+     * @return The replaced ranges of the old text ordered by start, their text is the replacement
+     */
+    public List<Match> replaceAll(Pattern pattern, String replacement){
+        parseWholeText();
+        List<Match> matches = mDocument.replaceAll(pattern, replacement);
+        Editable editable = getText();
+        if(editable == null || matches.isEmpty())
+            return matches;
+
+        long startTime = startMetric(Metric.render);
+        endTypingSpans();
+        isTextWatcherActivated = false;
+        int growth = 0;
+        //From the back, so the positions of the matches in front stay valid
+        for(int iMatch = matches.size() - 1; iMatch >= 0; --iMatch){
+            Match match = matches.get(iMatch);
+            editable.replace(match.getStart(), match.getEnd(), match.getText());
+            growth += match.getText().length() - (match.getEnd() - match.getStart());
         }
         isTextWatcherActivated = true;
+        finishMetric(Metric.render, startTime, matches.size());
+
+        if(!isIncrementalRenderingEnabled){
+            updateTextKeepSelection();
+            return matches;
+        }
+        int start = matches.get(0).getStart();
+        int end = matches.get(matches.size() - 1).getEnd() + growth;
+        for(SpanType type: SpanType.values())
+            updateSpans(start, end, type);
+        return matches;
     }
 
-    private void parseText(){
-        HTMLElement element;
-
-        //Look in each element if tags have to be replaced
-        for(int iEle = 0; iEle < mHtmlElements.size(); ++iEle){
-            element = mHtmlElements.get(iEle);
-            //Only replace text in HTMLText elements
-            if(element instanceof HTMLText){
-                //Look for the tags
-                for(String tag: mSupportedTags){
-                    //If one tag is found start method again because elments have changed
-                    if(replaceTag(element,tag, iEle)){
-                        parseText();
-                        return;
-                    }
+    /**
+     * Stop a running {@link #setTextAsync(String, OnTextLoadedListener)}
+     */
+    private void cancelLoad(){
+        ++mLoadGeneration;
+        if(mLoadTask != null){
+            mLoadTask.cancel(true);
+            mLoadTask = null;
+        }
+    }
+
+    private static synchronized ExecutorService getLoadExecutor(){
+        if(sLoadExecutor == null){
+            sLoadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CustomizableEditText-load");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            }
+            });
         }
+        return sLoadExecutor;
     }
 
     /**
-     * @return Text from the parent EditText with all added HTML tags
+     * Write the document as {@link DocumentSnapshot}, e.g. for a draft cache.
+     * Restoring it with {@link #readSnapshot(InputStream)} is faster than parsing {@link #getPlainText()}.
+     * @param out Destination, should be buffered
      */
-    public String getPlainText(){
-        CleanUp();
-        String text = "";
-        for(HTMLElement ele: mHtmlElements){
-            text += ele.getText();
-        }
+    public void writeSnapshot(OutputStream out) throws IOException{
+        parseWholeText();
+        DocumentSnapshot.write(mDocument, out);
+    }
 
-        text = text.replaceAll("\n", "<br/>");
+    /**
+     * Show a document written with {@link #writeSnapshot(OutputStream)}. The undo history is cleared.
+     * @param in Source, should be buffered
+     */
+    public void readSnapshot(InputStream in) throws IOException{
+        showDocument(DocumentSnapshot.read(in));
+    }
 
-        return text;
+    private void showDocument(HTMLDocument document){
+        cancelLoad();
+        mSegmentedDocument = null;
+        mDocument.setText(document);
+        updateText();
     }
 
-    private boolean replaceTag(HTMLElement element, String tag, int iEntry){
-        String text = ((HTMLText) element).getText();
-        Pattern p = Pattern.compile(tag);  // insert your pattern here
-        Matcher m = p.matcher(text);
-        if (m.find()) {
-            int index = m.start();
-            mHtmlElements.add(iEntry, new HTMLText(text.substring(index+(m.end()-m.start()), text.length())));
-            mHtmlElements.add(iEntry, getElementForSupportedTag(tag, text.substring(m.start(), m.end())));
-            mHtmlElements.add(iEntry, new HTMLText(text.substring(0, index)));
-            mHtmlElements.remove(element);
-            return true;
-        }
+    /**
+     * The text is saved as snapshot of the document in {@link #onSaveInstanceState()}
+     */
+    @Override
+    public boolean getFreezesText() {
         return false;
     }
 
-    private HTMLElement getElementForSupportedTag(String tag, String text){
-        if(tag.equals("<b>"))
-            return new HTMLBold(true);
-        if(tag.equals("</b>"))
-            return new HTMLBold(false);
-        if(tag.equals("<i>"))
-            return new HTMLItalic(true);
-        if(tag.equals("</i>"))
-            return new HTMLItalic(false);
-        if(tag.equals("<u>"))
-            return new HTMLUnderline(true);
-        if(tag.equals("</u>"))
-            return new HTMLUnderline(false);
-        if(tag.equals("<font color=\".*\">")){
-            int index = text.indexOf('#');
-            return new HTMLColor(true, text.substring(index+1, index + 7));
-        }
-        if(tag.equals("</font>")){
-            return new HTMLColor(false, "");
-        }
-        return null;
-    }
-
-    private int getPosInHtmlTextElement(int posInText){
-        for(HTMLElement element: mHtmlElements){
-            //For non text elements just skip it
-            if(!(element instanceof HTMLText)){
-                continue;
-            }
-            //if our position is not in the current element decrement the pos and continue
-            if(posInText > element.getSize()){
-                posInText -= element.getSize();
+    @Override
+    public Parcelable onSaveInstanceState() {
+        SavedState state = new SavedState(super.onSaveInstanceState());
+        flushTextChanges();
+        //The file of an older state is not needed anymore, the state is saved again
+        deleteSnapshotFile();
+        if(mSegmentedDocument != null){
+            saveLargeText(state);
+            return state;
+        }
+        byte[] snapshot = DocumentSnapshot.toBytes(mDocument);
+        if(snapshot.length <= MAX_PARCEL_SNAPSHOT_SIZE) {
+            state.snapshot = snapshot;
+            return state;
+        }
+
+        try {
+            mSnapshotFile = File.createTempFile(SNAPSHOT_FILE_PREFIX, ".snapshot", getContext().getCacheDir());
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(mSnapshotFile));
+            try {
+                out.write(snapshot);
+            } finally {
+                out.close();
             }
-            else{
-                //Pos is in this element
-                return posInText;
+            state.snapshotPath = mSnapshotFile.getPath();
+        } catch (IOException e) {
+            //Without space in the cache the text can't be restored, that's better than a too large transaction
+            deleteSnapshotFile();
+        }
+        return state;
+    }
+
+    /**
+     * Save a large text as HTML, a snapshot would need the whole document to be parsed
+     */
+    private void saveLargeText(SavedState state){
+        try {
+            mSnapshotFile = File.createTempFile(SNAPSHOT_FILE_PREFIX, ".html", getContext().getCacheDir());
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mSnapshotFile), "UTF-8"));
+            try {
+                mSegmentedDocument.writePlainText(out);
+            } finally {
+                out.close();
             }
+            state.htmlPath = mSnapshotFile.getPath();
+        } catch (IOException e) {
+            deleteSnapshotFile();
         }
-        return -1;
     }
 
-    private HTMLText getElementForPosition(int posInText){
-        if(mHtmlElements == null)
-            return null;
+    @Override
+    public void onRestoreInstanceState(Parcelable state) {
+        if(!(state instanceof SavedState)){
+            super.onRestoreInstanceState(state);
+            return;
+        }
+        SavedState savedState = (SavedState) state;
+        try {
+            if(savedState.snapshot != null)
+                showDocument(DocumentSnapshot.fromBytes(savedState.snapshot));
+            else if(savedState.snapshotPath != null)
+                showDocument(readSnapshotFile(new File(savedState.snapshotPath)));
+            else if(savedState.htmlPath != null)
+                setText(readHtmlFile(new File(savedState.htmlPath)));
+        } catch (IOException e) {
+            //The file was removed from the cache, keep the current text
+        }
+        //Restores the selection, so the text has to be shown before
+        super.onRestoreInstanceState(savedState.getSuperState());
+    }
 
-        for(HTMLElement element: mHtmlElements){
-            //For non text elements just skip it
-            if(!(element instanceof HTMLText)){
-                continue;
-            }
-            //if our position is not in the current element decrement the pos and continue
-            if(posInText > element.getSize()){
-                posInText -= element.getSize();
-            }
-            else{
-                //Pos is in this element
-                return (HTMLText)element;
-            }
+    private HTMLDocument readSnapshotFile(File file) throws IOException{
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return DocumentSnapshot.read(in);
+        } finally {
+            in.close();
+            //deleteSnapshotFile only knows the file of this instance
+            file.delete();
+            if(file.equals(mSnapshotFile))
+                mSnapshotFile = null;
         }
-        return null;
     }
 
-    private void CleanUp(){
-        HTMLElement first, second;
-        //Try to merge tags when a closing tag is directly followed by an opening tag of the same type.
-        //Also remove empty text elements or merge to text elements.
-        for(int iEle = 0; iEle < mHtmlElements.size()-1; ++iEle){
-            first = mHtmlElements.get(iEle);
-            second = mHtmlElements.get(iEle+1);
+    private String readHtmlFile(File file) throws IOException{
+        Reader in = new InputStreamReader(new BufferedInputStream(new FileInputStream(file)), "UTF-8");
+        try {
+            StringBuilder html = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while((count = in.read(buffer)) > 0)
+                html.append(buffer, 0, count);
+            return html.toString();
+        } finally {
+            in.close();
+            file.delete();
+            if(file.equals(mSnapshotFile))
+                mSnapshotFile = null;
+        }
+    }
 
-            if(first instanceof HTMLText && second instanceof HTMLText){
-                String text = first.getText() + second.getText();
-                mHtmlElements.remove(first);
-                mHtmlElements.remove(second);
-                mHtmlElements.add(iEle, new HTMLText(text));
-                CleanUp();
-                return;
-            }
-            else if(first instanceof HTMLBold && second instanceof HTMLBold &&
-                !first.isOpenTag() && second.isOpenTag()){
-                mHtmlElements.remove(first);
-                mHtmlElements.remove(second);
-                CleanUp();
-                return;
-            }
-            else if(first instanceof HTMLUnderline && second instanceof HTMLUnderline &&
-                !first.isOpenTag() && second.isOpenTag()){
-                mHtmlElements.remove(first);
-                mHtmlElements.remove(second);
-                CleanUp();
-                return;
-            }
-            else if(first instanceof HTMLItalic && second instanceof HTMLItalic &&
-                !first.isOpenTag() && second.isOpenTag()){
-                mHtmlElements.remove(first);
-                mHtmlElements.remove(second);
-                CleanUp();
-                return;
-            }
-            else if(first instanceof HTMLText && first.getText().length() == 0){
-                mHtmlElements.remove(first);
-                CleanUp();
-                return;
-            }
+    private void deleteSnapshotFile(){
+        if(mSnapshotFile != null){
+            mSnapshotFile.delete();
+            mSnapshotFile = null;
         }
+    }
 
-        CleanUpNestedSameTags();
-    }
-
-    /**
-     * Remove nested tags of the same type: <a> <a> </a> </a> -> <a> </a>
-     */
-    private void CleanUpNestedSameTags(){
-        ArrayList<HTMLElement> openedTags = new ArrayList<>();
-        HTMLElement tag = null;
-        boolean foundNestedTag = false;
-        boolean containsNestedTags = true;
-        while(containsNestedTags) {
-            //Remove nested tags from same type
-            for (int iEle = 0; iEle < mHtmlElements.size() - 1; ++iEle) {
-                //No nested tag found until now
-                if (!foundNestedTag) {
-                    tag = mHtmlElements.get(iEle);
-                    //Text is irrelevant, skip it
-                    if(tag instanceof HTMLText)
-                        continue;
-                    if (tag.isOpenTag()) {
-                        //Found a nested tag from same type
-                        if (containsTagFromType(openedTags, tag)) {
-                            foundNestedTag = true;
-                        } else {
-                            openedTags.add(tag);
-                        }
-                    } else {
-                        //Remove the corresponding opened tag from the list
-                        for (HTMLElement openEle : openedTags) {
-                            if (openEle.getType().compareTo(tag.getType()) == 0 ) {
-                                openedTags.remove(openEle);
-                                break;
-                            }
-                        }
-                    }
-                } else {
-                    //It does not matter if closeTag is the corresponding one tag.
-                    //If there are multiple nested tags all of them will be deleted
-                    //<a> <a> <a> </a> </a> </a> 1.Step
-                    //<a>     <a>      </a> </a> 2.Step
-                    //<a>                   </a> 3.Step
-                    HTMLElement closeTag = mHtmlElements.get(--iEle); //Decrement because nested tag was found in previous round
-                    if (tag.getType().compareTo(closeTag.getType()) == 0 ) {
-                        mHtmlElements.remove(tag);
-                        mHtmlElements.remove(closeTag);
-                        //Go back to the while-loop and start again
-                        break;
-                    }
+    /**
+     * Delete the snapshot files of states which were never restored, e.g. because the app was closed.
+     * Runs once per process on the load executor. Newer files may still belong to a state which is restored.
+     */
+    private static synchronized void cleanOldSnapshotFiles(Context context){
+        if(isSnapshotCacheCleaned)
+            return;
+        isSnapshotCacheCleaned = true;
+        final File cacheDir = context.getCacheDir();
+        if(cacheDir == null)
+            return;
+        getLoadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = cacheDir.listFiles();
+                if(files == null)
+                    return;
+                long oldest = System.currentTimeMillis() - MAX_SNAPSHOT_FILE_AGE;
+                for(File file: files){
+                    if(file.getName().startsWith(SNAPSHOT_FILE_PREFIX) && file.lastModified() < oldest)
+                        file.delete();
                 }
             }
-            //If we reach this point no nested tags were found
-            containsNestedTags = false;
-        }
+        });
     }
 
-    private boolean containsTagFromType(ArrayList<HTMLElement> elements, HTMLElement tag){
-        for(HTMLElement element: elements){
-            if(element.getType().compareTo(tag.getType()) == 0){
-                return true;
-            }
-        }
-        return false;
+    /**
+     * @return Text from the parent EditText with all added HTML tags
+     */
+    public String getPlainText(){
+        flushTextChanges();
+        return mSegmentedDocument != null ? mSegmentedDocument.getPlainText() : mDocument.getPlainText();
     }
 
-    private void updateText(){
-        String text = "";
-        for(HTMLElement ele: mHtmlElements){
-            text += ele.getText();
-        }
+    /**
+     * Write the same text as {@link #getPlainText()} to out without building one String of the whole text.
+     * Use this to save large texts directly to a file.
+     * @param out Destination, e.g. a {@link Writer} or a reused {@link StringBuilder}
+     */
+    public void writePlainText(Appendable out) throws IOException{
+        flushTextChanges();
+        if(mSegmentedDocument != null)
+            mSegmentedDocument.writePlainText(out);
+        else
+            mDocument.writePlainText(out);
+    }
 
-        text = text.replaceAll("\n", "<br/>");
+    /**
+     * @return The shown text
+     */
+    private Spanned updateText(){
+        long startTime = startMetric(Metric.render);
+        Spanned spanned = Html.fromHtml(mDocument.toHtml());
+        showText(spanned);
+        finishMetric(Metric.render, startTime, length());
+        return spanned;
+    }
 
+    /**
+     * @param text Rendered text, null for an empty text
+     */
+    private void showText(CharSequence text){
         //Deactivate the textwatcher here because its event are goint to be triggered and we don't want this here.
         isTextWatcherActivated = false;
-        super.setText(Html.fromHtml(text));
+        super.setText(text == null ? "" : text);
+        mTypingSpans.clear();
+        mPendingChange.clear();
         isTextWatcherActivated = true;
     }
 
@@ -425,116 +960,394 @@ public class CustomizableEditText extends AppCompatEditText implements TextWatch
      * @param end Pos for close tag in text
      * @param type Span type
      * @param color If type is no color span => ignored
+     * @throws IllegalArgumentException If a color span has no color
      */
     public void addSpan(int start, int end, SpanType type, String color){
         //Wouldn't make sense to insert this empty tag
         if(start == end)
             return;
-        HTMLText startEle = getElementForPosition(start);
-        HTMLText endEle = getElementForPosition(end);
+        flushTextChanges();
+        if(mSegmentedDocument != null){
+            addLargeTextSpan(start, end, type, color);
+            return;
+        }
+        //A removed nested tag changes the style somewhere else, so render everything in this case
+        if(mDocument.addSpan(start, end, type, color) || !isIncrementalRenderingEnabled)
+            updateText();
+        else
+            updateSpans(start, end, type);
+    }
+
+    private void addLargeTextSpan(int start, int end, SpanType type, String color){
+        //Paragraphs which were not visible yet get all their spans
+        List<int[]> parsed = mSegmentedDocument.parse(start, end);
+        if(!parsed.isEmpty()){
+            for(SpanType parsedType: SpanType.values())
+                updateSpans(parsed.get(0)[0], parsed.get(parsed.size() - 1)[1], parsedType);
+        }
+        //A removed nested tag only changes the style in the same paragraphs
+        if(mSegmentedDocument.addSpan(start, end, type, color))
+            updateSpans(mSegmentedDocument.getSegmentStart(start), mSegmentedDocument.getSegmentEnd(end), type);
+        else
+            updateSpans(start, end, type);
+    }
 
-        //Simple case we have to add the span in only one tag
-        if(startEle == endEle){
-            int index = mHtmlElements.indexOf(startEle);
-            start = getPosInHtmlTextElement(start);
-            end = getPosInHtmlTextElement(end);
+    /**
+     * Remove the formatting of one type from the text between start and end
+     * @param start Start pos in text
+     * @param end End pos in text
+     * @param type Span type
+     */
+    public void removeSpan(int start, int end, SpanType type){
+        if(start >= end)
+            return;
+        parseWholeText();
+        if(mDocument.removeSpan(start, end, type) || !isIncrementalRenderingEnabled)
+            updateText();
+        else
+            updateSpans(start, end, type);
+    }
+
+    /**
+     * Remove the span if the whole text between start and end already has it, otherwise add it,
+     * e.g. for a bold button
+     * @param color If type is no color span => ignored
+     * @throws IllegalArgumentException If a color span has no color
+     */
+    public void toggleSpan(int start, int end, SpanType type, String color){
+        if(start >= end)
+            return;
+        parseWholeText();
+        if(mDocument.toggleSpan(start, end, type, color) || !isIncrementalRenderingEnabled)
+            updateText();
+        else
+            updateSpans(start, end, type);
+    }
+
+    /**
+     * @return Styles of the text between start and end, see {@link HTMLDocument#getSpansAt(int, int)}
+     */
+    public List<Span> getSpansAt(int start, int end){
+        parseWholeText();
+        return mDocument.getSpansAt(start, end);
+    }
+
+    /**
+     * Format the text which is typed from now on, e.g. to start writing in bold. Typed characters go directly
+     * into a formatted run of the document and the spans of the view grow with them, so nothing is rendered
+     * again while typing.
+     * @param styles Styles of the typed text, empty to type plain text again
+     * @param color Color for {@link SpanType#color}, ignored otherwise
+     * @throws IllegalArgumentException If the styles contain {@link SpanType#color} without a color
+     */
+    public void setTypingStyle(Set<SpanType> styles, String color){
+        if(styles.contains(SpanType.color) && color == null)
+            throw new IllegalArgumentException("A color span needs a color");
+        //Text which was typed before is in the old style, typed styles need the whole document
+        if(styles.isEmpty())
+            flushTextChanges();
+        else
+            parseWholeText();
+        endTypingSpans();
+        mTypingStyles.clear();
+        mTypingStyles.addAll(styles);
+        mTypingColor = styles.contains(SpanType.color) ? color : null;
+    }
+
+    /**
+     * Make sure the typing spans cover [start, end). Spans of the current run already grew because they are
+     * {@link Spanned#SPAN_EXCLUSIVE_INCLUSIVE}, otherwise new spans are started.
+     */
+    private void extendTypingSpans(int start, int end){
+        Editable editable = getText();
+        if(editable == null)
+            return;
+        boolean isRunContinued = !mTypingSpans.isEmpty();
+        for(Object span: mTypingSpans){
+            int spanStart = editable.getSpanStart(span);
+            if(spanStart < 0 || spanStart > start || editable.getSpanEnd(span) < start){
+                isRunContinued = false;
+                break;
+            }
+        }
+        if(isRunContinued){
+            for(Object span: mTypingSpans){
+                if(editable.getSpanEnd(span) < end)
+                    editable.setSpan(span, editable.getSpanStart(span), end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+            }
+            return;
+        }
 
-            addSpanToElement(startEle, index, type, color, start, end);
+        endTypingSpans();
+        for(SpanType type: mTypingStyles){
+            Object span = createSpan(new Span(start, end, type, mTypingColor));
+            if(span != null){
+                editable.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_INCLUSIVE);
+                mTypingSpans.add(span);
+            }
         }
-        else{
-            //We insert the elements from the back to the front to don't get confused with the indices.
-            //If we would start at the front we have to keep track how many elements we add to the list.
-            int posEndEle = getPosInHtmlTextElement(end);
-            int posStartEle = getPosInHtmlTextElement(start);
-
-
-            //Wrap each text element between in the tag.
-            //If the elements appear right after each other the tags will be merged in the clean up routine.
-            for(int iEleBetween = mHtmlElements.indexOf(endEle) - 1; iEleBetween > mHtmlElements.indexOf(startEle); --iEleBetween){
-                HTMLElement elementBetween = mHtmlElements.get(iEleBetween);
-                if(elementBetween instanceof HTMLText){
-                    addSpanToElement(elementBetween, iEleBetween, type, color, 0, elementBetween.getText().length());
-                }
+    }
+
+    /**
+     * Stop growing the spans of the last typing run
+     */
+    private void endTypingSpans(){
+        Editable editable = getText();
+        if(editable != null){
+            for(Object span: mTypingSpans){
+                int spanStart = editable.getSpanStart(span);
+                int spanEnd = editable.getSpanEnd(span);
+                if(spanStart >= 0 && spanStart < spanEnd)
+                    editable.setSpan(span, spanStart, spanEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                else if(spanStart >= 0)
+                    editable.removeSpan(span);
             }
+        }
+        mTypingSpans.clear();
+    }
 
-            addSpanToElement(endEle, mHtmlElements.indexOf(endEle), type, color, 0, posEndEle);
-            addSpanToElement(startEle, mHtmlElements.indexOf(startEle), type, color, posStartEle, startEle.getText().length());
+    /**
+     * Add many spans with one normalization and one render, e.g. to highlight search results.
+     * Later spans are nested inside of earlier ones like calling {@link #addSpan(int, int, SpanType, String)}
+     * for each of them.
+     * @param spans Spans to add
+     */
+    public void addSpans(Collection<Span> spans){
+        if(spans.isEmpty())
+            return;
+        parseWholeText();
+        if(mDocument.addSpans(spans) || !isIncrementalRenderingEnabled){
+            updateText();
+            return;
         }
-        CleanUp();
+
+        //Replace the spans of each added type in the range of all added spans
+        int start = Integer.MAX_VALUE;
+        int end = 0;
+        EnumSet<SpanType> types = EnumSet.noneOf(SpanType.class);
+        for(Span span: spans){
+            if(span.getStart() >= span.getEnd())
+                continue;
+            start = Math.min(start, span.getStart());
+            end = Math.max(end, span.getEnd());
+            types.add(span.getType());
+        }
+        for(SpanType type: types)
+            updateSpans(start, end, type);
+    }
+
+    /**
+     * Revert the last added span or the last consecutive keystrokes up to a line break
+     * @return False if there was nothing to undo
+     */
+    public boolean undo(){
+        flushTextChanges();
+        //Changes of a large text are not recorded
+        if(mSegmentedDocument != null || !mDocument.undo())
+            return false;
+        updateTextKeepSelection();
+        return true;
+    }
+
+    /**
+     * Apply the last reverted change again
+     * @return False if there was nothing to redo
+     */
+    public boolean redo(){
+        flushTextChanges();
+        if(mSegmentedDocument != null || !mDocument.redo())
+            return false;
+        updateTextKeepSelection();
+        return true;
+    }
+
+    public boolean canUndo(){
+        flushTextChanges();
+        return mSegmentedDocument == null && mDocument.canUndo();
+    }
+
+    public boolean canRedo(){
+        flushTextChanges();
+        return mSegmentedDocument == null && mDocument.canRedo();
+    }
+
+    /**
+     * Limit the memory of the undo history, see {@link HTMLDocument#setHistoryLimits(int, int)}
+     */
+    public void setHistoryLimits(int maxSteps, int maxSize){
+        mDocument.setHistoryLimits(maxSteps, maxSize);
+    }
+
+    private void updateTextKeepSelection(){
+        int selection = getSelectionEnd();
         updateText();
+        setSelection(Math.max(0, Math.min(selection, length())));
     }
 
     /**
-     *
-     * @param element Element we have to split
-     * @param indexOfElement Index in the HTMLElement-List
-     * @param type SpanType
-     * @param color String which is used as html attribute for the color
-     * @param startPos Start position where the element needs to be splitted
-     * @param endPos End position where the element needs to be splitted
+     * If enabled {@link #addSpan(int, int, SpanType, String)} only replaces the spans in the formatted range
+     * instead of rendering the whole text with {@link Html#fromHtml(String)}. Enabled by default.
      */
-    private void addSpanToElement(HTMLElement element, int indexOfElement, SpanType type, String color, int startPos, int endPos ){
-        //Wouldn't make sense to insert this empty tag
-        if(startPos == endPos || element.getText() == null)
+    public void setIncrementalRenderingEnabled(boolean enabled){
+        isIncrementalRenderingEnabled = enabled;
+    }
+
+    /**
+     * Replace the spans of one type in [start, end) of the Editable with the spans from the model.
+     */
+    private void updateSpans(int start, int end, SpanType type){
+        Editable editable = getText();
+        if(editable == null)
             return;
+        long startTime = startMetric(Metric.render);
 
-        if(endPos != element.getText().length()){
-            //last part of text
-            mHtmlElements.add(indexOfElement, new HTMLText(element.getText().substring(endPos, element.getText().length())));
-        }
-        //Closing span tag
-        mHtmlElements.add(indexOfElement, getNewElement(type, false, color));
-        //Middle part between the tags
-        mHtmlElements.add(indexOfElement, new HTMLText(element.getText().substring(startPos, endPos)));
-        //Opening span tag
-        mHtmlElements.add(indexOfElement, getNewElement(type, true, color));
-        //Only if startPos == 0, otherwise nothing would be added
-        if(startPos != 0){
-            //first part of text
-            mHtmlElements.add(indexOfElement, new HTMLText(element.getText().substring(0,startPos)));
+        //Cut the old spans out of the range
+        for(Object span: editable.getSpans(start, end, getSpanClass(type))){
+            int oldStart = editable.getSpanStart(span);
+            int oldEnd = editable.getSpanEnd(span);
+            if(!isSpanOfType(span, type) || oldEnd <= start || oldStart >= end ||
+                (editable.getSpanFlags(span) & Spanned.SPAN_COMPOSING) != 0)
+                continue;
+
+            editable.removeSpan(span);
+            if(oldStart < start)
+                editable.setSpan(copySpan(span), oldStart, start, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if(oldEnd > end)
+                editable.setSpan(copySpan(span), end, oldEnd, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
         }
 
-        mHtmlElements.remove(element);
+        List<Span> spans = mSegmentedDocument != null ? mSegmentedDocument.getSpans(start, end, type) :
+            mDocument.getSpans(start, end, type);
+        for(Span span: spans){
+            Object style = createSpan(span);
+            if(style != null)
+                editable.setSpan(style, span.getStart(), span.getEnd(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        finishMetric(Metric.render, startTime, end - start);
     }
 
-    private HTMLElement getNewElement(SpanType type, boolean isOpen, String color){
-        switch(type){
-            case bold: return new HTMLBold(isOpen);
-            case underline: return new HTMLUnderline(isOpen);
-            case italic: return new HTMLItalic(isOpen);
-            case color: return new HTMLColor(isOpen, color);
-            default: return null;
-        }
+    /**
+     * Report the duration of parsing, typing, formatting, normalizing, rendering and saving the text.
+     * While a listener is set the operations are also shown as sections in systrace (API 18 and newer).
+     * Without a listener nothing is measured.
+     * @param listener Called on the thread of the operation, mostly the main thread. May be null
+     */
+    public void setMetricsListener(final MetricsListener listener){
+        mMetricsListener = listener == null ? null : new MetricsListener() {
+            @Override
+            public void onStart(Metric metric) {
+                if(Build.VERSION.SDK_INT >= 18)
+                    Trace.beginSection(TRACE_SECTIONS[metric.ordinal()]);
+                listener.onStart(metric);
+            }
+
+            @Override
+            public void onFinish(Metric metric, long durationNanos, int count, int elementCount, int textLength) {
+                if(Build.VERSION.SDK_INT >= 18)
+                    Trace.endSection();
+                listener.onFinish(metric, durationNanos, count, elementCount, textLength);
+            }
+        };
+        mDocument.setMetricsListener(mMetricsListener);
     }
 
-    private abstract class HTMLElement{
-        protected boolean isOpenTag;
-        protected String text;
-        protected String type;
+    /**
+     * @return Start time for {@link #finishMetric(Metric, long, int)}
+     */
+    private long startMetric(Metric metric){
+        if(mMetricsListener == null)
+            return 0;
+        mMetricsListener.onStart(metric);
+        return System.nanoTime();
+    }
 
-        public boolean isOpenTag(){ return this.isOpenTag;}
-        public int getSize(){return text == null ? 0 : text.length();}
-        public String getText(){return this.text;}
-        public String getType() {return type;}
+    private void finishMetric(Metric metric, long startTime, int count){
+        if(mMetricsListener == null)
+            return;
+        long duration = System.nanoTime() - startTime;
+        mMetricsListener.onFinish(metric, duration, count, mDocument.getElements().size(), mDocument.length());
     }
-    private class HTMLText extends HTMLElement{
-        HTMLText(String text){this.text = text; this.type="html_text";}
-        public void setText(String text){this.text = text;}
+
+    private Class<?> getSpanClass(SpanType type){
+        switch(type){
+            case bold:
+            case italic: return StyleSpan.class;
+            case underline: return UnderlineSpan.class;
+            default: return ForegroundColorSpan.class;
+        }
     }
-    private class HTMLBold extends HTMLElement{
-        HTMLBold(boolean isOpenTag){this.isOpenTag = isOpenTag; text = isOpenTag ? "<b>":"</b>"; this.type=SpanType.bold.name();}
-        public boolean isOpenTag(){return this.isOpenTag;}
+
+    private boolean isSpanOfType(Object span, SpanType type){
+        switch(type){
+            case bold: return ((StyleSpan) span).getStyle() == Typeface.BOLD;
+            case italic: return ((StyleSpan) span).getStyle() == Typeface.ITALIC;
+            default: return true;
+        }
     }
-    private class HTMLUnderline extends HTMLElement{
-        HTMLUnderline(boolean isOpenTag){this.isOpenTag = isOpenTag; text = isOpenTag ? "<u>":"</u>"; this.type=SpanType.underline.name();}
-        public boolean isOpenTag(){return this.isOpenTag;}
+
+    private Object copySpan(Object span){
+        if(span instanceof StyleSpan)
+            return new StyleSpan(((StyleSpan) span).getStyle());
+        if(span instanceof UnderlineSpan)
+            return new UnderlineSpan();
+        return new ForegroundColorSpan(((ForegroundColorSpan) span).getForegroundColor());
     }
-    private class HTMLItalic extends HTMLElement{
-        HTMLItalic(boolean isOpenTag){this.isOpenTag = isOpenTag; text = isOpenTag ? "<i>":"</i>"; this.type=SpanType.italic.name();}
-        public boolean isOpenTag(){return this.isOpenTag;}
+
+    /**
+     * @return Android span for the model span or null if it has an invalid color
+     */
+    private Object createSpan(Span span){
+        switch(span.getType()){
+            case bold: return new StyleSpan(Typeface.BOLD);
+            case italic: return new StyleSpan(Typeface.ITALIC);
+            case underline: return new UnderlineSpan();
+            default:
+                try {
+                    return new ForegroundColorSpan(Color.parseColor("#" + span.getColor()));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+        }
     }
-    private class HTMLColor extends HTMLElement{
-        HTMLColor(boolean isOpenTag, String color){this.isOpenTag = isOpenTag; text = isOpenTag ? "<font color=\"#"+color+"\">":"</font>"; this.type=SpanType.color.name();}
-        public boolean isOpenTag(){return this.isOpenTag;}
+
+    /**
+     * Saved state with the document as {@link DocumentSnapshot} or the path of a file with it.
+     * A large text is saved as a file with its HTML.
+     */
+    static class SavedState extends BaseSavedState{
+        byte[] snapshot;
+        String snapshotPath;
+        String htmlPath;
+
+        SavedState(Parcelable superState) {
+            super(superState);
+        }
+
+        private SavedState(Parcel in) {
+            super(in);
+            snapshot = in.createByteArray();
+            snapshotPath = in.readString();
+            htmlPath = in.readString();
+        }
+
+        @Override
+        public void writeToParcel(Parcel out, int flags) {
+            super.writeToParcel(out, flags);
+            out.writeByteArray(snapshot);
+            out.writeString(snapshotPath);
+            out.writeString(htmlPath);
+        }
+
+        public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+            @Override
+            public SavedState createFromParcel(Parcel in) {
+                return new SavedState(in);
+            }
+
+            @Override
+            public SavedState[] newArray(int size) {
+                return new SavedState[size];
+            }
+        };
     }
 }
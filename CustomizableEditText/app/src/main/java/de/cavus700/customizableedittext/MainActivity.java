@@ -3,6 +3,11 @@ package de.cavus700.customizableedittext;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
 
+import java.util.Arrays;
+
+import de.cavus700.customizableedittext.model.Span;
+import de.cavus700.customizableedittext.model.SpanType;
+
 public class MainActivity extends AppCompatActivity {
 
     @Override
@@ -18,13 +23,9 @@ public class MainActivity extends AppCompatActivity {
         cet.setText(demoText1 + demoText2);
 
         String currentText = cet.getText().toString();
-        cet.addSpan(currentText.length() - demoText2.length(),
-            currentText.length(),
-            CustomizableEditText.SpanType.bold,
-            null);
-        cet.addSpan(currentText.length() - demoText2.length(),
-            currentText.length(),
-            CustomizableEditText.SpanType.color,
-            "00ff00");
+        int start = currentText.length() - demoText2.length();
+        cet.addSpans(Arrays.asList(
+            new Span(start, currentText.length(), SpanType.bold, null),
+            new Span(start, currentText.length(), SpanType.color, "00ff00")));
     }
 }
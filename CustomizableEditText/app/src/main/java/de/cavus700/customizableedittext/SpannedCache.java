@@ -0,0 +1,75 @@
+package de.cavus700.customizableedittext;
+
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.util.LruCache;
+
+import de.cavus700.customizableedittext.model.DocumentSnapshot;
+import de.cavus700.customizableedittext.model.HTMLDocument;
+
+/**
+ * Parsed and rendered texts of {@link CustomizableEditText#setText(String)}, shared by views which show the
+ * same texts again and again, e.g. the items of a RecyclerView. On a hit setText neither parses the HTML nor
+ * renders it with {@link android.text.Html#fromHtml(String)}.
+ * The least recently used texts are removed when the entries need more than the given number of bytes.
+ */
+public class SpannedCache{
+    //Estimated bytes of a span in the rendered text: the span object and its start, end and flags
+    private static final int SPAN_SIZE = 48;
+
+    static final class Entry{
+        //Elements of the parsed document, a document can't be shared because it is edited
+        final byte[] snapshot;
+        //Immutable, the view copies it into its Editable
+        final Spanned spanned;
+
+        private Entry(byte[] snapshot, Spanned spanned){
+            this.snapshot = snapshot;
+            this.spanned = spanned;
+        }
+    }
+
+    private final LruCache<String, Entry> mEntries;
+
+    /**
+     * @param maxBytes Approximate memory of all entries, including the HTML they are stored for
+     */
+    public SpannedCache(int maxBytes){
+        mEntries = new LruCache<String, Entry>(maxBytes){
+            @Override
+            protected int sizeOf(String html, Entry entry) {
+                return html.length() * 2 + entry.snapshot.length + entry.spanned.length() * 2 +
+                    entry.spanned.getSpans(0, entry.spanned.length(), Object.class).length * SPAN_SIZE;
+            }
+        };
+    }
+
+    /**
+     * @return Entry for exactly this HTML or null
+     */
+    Entry get(String html){
+        return mEntries.get(html);
+    }
+
+    /**
+     * @param document Parsed html
+     * @param spanned Rendered document
+     */
+    void put(String html, HTMLDocument document, Spanned spanned){
+        mEntries.put(html, new Entry(DocumentSnapshot.toBytes(document), new SpannedString(spanned)));
+    }
+
+    /**
+     * Remove all texts, e.g. in onTrimMemory
+     */
+    public void clear(){
+        mEntries.evictAll();
+    }
+
+    /**
+     * @return Approximate memory of all entries in bytes
+     */
+    public int size(){
+        return mEntries.size();
+    }
+}
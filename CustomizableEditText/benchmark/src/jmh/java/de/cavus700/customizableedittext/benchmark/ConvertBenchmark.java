@@ -0,0 +1,61 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import de.cavus700.customizableedittext.model.HtmlConverter;
+
+/**
+ * Converting all notes of an account at once, e.g. for a search index, with one to eight threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConvertBenchmark{
+    private static final int NOTES = 1000;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ExecutorService mExecutor;
+    private HtmlConverter mConverter;
+    private List<String> mNotes;
+
+    @Setup
+    public void setUp(){
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mConverter = new HtmlConverter(mExecutor, threads);
+        //Mostly short notes and a few long ones
+        mNotes = new ArrayList<>();
+        for(int iNote = 0; iNote < NOTES; ++iNote)
+            mNotes.add(Documents.generate(iNote % 50 == 0 ? 65536 : 2048, iNote));
+    }
+
+    @TearDown
+    public void tearDown(){
+        mExecutor.shutdown();
+    }
+
+    @Benchmark
+    public List<String> htmlToText() throws InterruptedException{
+        return mConverter.convertAll(mNotes, HtmlConverter.Conversion.htmlToText);
+    }
+
+    @Benchmark
+    public List<String> normalizeHtml() throws InterruptedException{
+        return mConverter.convertAll(mNotes, HtmlConverter.Conversion.normalizeHtml);
+    }
+}
@@ -0,0 +1,49 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import java.util.Random;
+
+/**
+ * Generates notes like the ones users write: words, line breaks and nested &lt;b&gt;, &lt;i&gt;, &lt;u&gt;
+ * and &lt;font&gt; spans. The same size and seed always give the same document.
+ */
+public final class Documents{
+    private static final String[] WORDS = {"the", "editor", "note", "meeting", "tomorrow", "a", "list", "of",
+        "things", "to", "remember", "and", "important", "is", "color", "bold", "text", "with", "some", "words"};
+    private static final String[] OPEN_TAGS = {"<b>", "<i>", "<u>", "<font color=\"#ff0000\">", "<font color=\"#0000ff\">"};
+    private static final String[] CLOSE_TAGS = {"</b>", "</i>", "</u>", "</font>", "</font>"};
+
+    private Documents(){}
+
+    /**
+     * @param sizeInBytes Approximate length of the HTML
+     * @param seed Seed for the random generator
+     */
+    public static String generate(int sizeInBytes, long seed){
+        Random random = new Random(seed);
+        StringBuilder html = new StringBuilder(sizeInBytes + 64);
+        //Indices into OPEN_TAGS of the currently opened tags
+        int[] openTags = new int[OPEN_TAGS.length];
+        int openCount = 0;
+
+        while(html.length() < sizeInBytes){
+            int action = random.nextInt(20);
+            if(action == 0 && openCount < openTags.length){
+                int tag = random.nextInt(OPEN_TAGS.length);
+                html.append(OPEN_TAGS[tag]);
+                openTags[openCount++] = tag;
+            }
+            else if(action == 1 && openCount > 0){
+                html.append(CLOSE_TAGS[openTags[--openCount]]);
+            }
+            else if(action == 2){
+                html.append("<br/>");
+            }
+            else{
+                html.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+        }
+        while(openCount > 0)
+            html.append(CLOSE_TAGS[openTags[--openCount]]);
+        return html.toString();
+    }
+}
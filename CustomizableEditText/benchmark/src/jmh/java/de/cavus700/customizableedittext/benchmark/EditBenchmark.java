@@ -0,0 +1,88 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import de.cavus700.customizableedittext.model.HTMLDocument;
+import de.cavus700.customizableedittext.model.SpanType;
+
+/**
+ * A single keystroke as it arrives from the TextWatcher, in the middle and at the end of the document
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EditBenchmark{
+    private static final Set<SpanType> BOLD = EnumSet.of(SpanType.bold);
+    private static final Pattern MEETING = Pattern.compile("meeting");
+    private static final Pattern CALL = Pattern.compile("call");
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    private HTMLDocument mDocument;
+    private int mMiddle;
+    private int mEnd;
+    private String mHtml;
+    private String mChangedHtml;
+
+    @Setup(Level.Iteration)
+    public void setUp(){
+        mDocument = new HTMLDocument();
+        mDocument.setText(Documents.generate(size, 42));
+        mMiddle = mDocument.length() / 2;
+        mEnd = mDocument.length();
+        mHtml = mDocument.getPlainText();
+        //Another version of the text with one word in the middle changed
+        int middle = mHtml.indexOf(' ', mHtml.length() / 2);
+        mChangedHtml = mHtml.substring(0, middle) + " changed" + mHtml.substring(middle);
+    }
+
+    @Benchmark
+    public void typeAndDeleteInMiddle(){
+        mDocument.addText("a", mMiddle);
+        mDocument.removeText(mMiddle, mMiddle + 1);
+    }
+
+    @Benchmark
+    public void typeAndDeleteAtEnd(){
+        mDocument.addText("a", mEnd);
+        mDocument.removeText(mEnd, mEnd + 1);
+    }
+
+    @Benchmark
+    public void typeInMiddle(){
+        mDocument.addText("a", mMiddle++);
+    }
+
+    @Benchmark
+    public void typeBoldInMiddle(){
+        mDocument.addText("a", mMiddle++, BOLD, null);
+    }
+
+    @Benchmark
+    public void replaceContentBackAndForth(){
+        mDocument.replaceContent(mChangedHtml);
+        mDocument.replaceContent(mHtml);
+    }
+
+    /**
+     * Rename a word which is in about every twentieth word of the text and back
+     */
+    @Benchmark
+    public int replaceAllBackAndForth(){
+        return mDocument.replaceAll(MEETING, "call").size() + mDocument.replaceAll(CALL, "meeting").size();
+    }
+}
@@ -0,0 +1,214 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import de.cavus700.customizableedittext.model.HTMLDocument;
+import de.cavus700.customizableedittext.model.SpanType;
+
+/**
+ * Recorded session of a user: a start document and the events the widget gets while typing, formatting and
+ * saving. The same seeds always give the same trace.
+ * Text format, one operation per line:
+ * <pre>
+ * document &lt;size&gt; &lt;seed&gt;              start document of {@link Documents#generate(int, long)}
+ * edit &lt;start&gt; &lt;before&gt; &lt;text&gt;       onTextChanged(start, before, text.length()), text is escaped
+ * span &lt;start&gt; &lt;end&gt; &lt;type&gt; [color]  addSpan
+ * save                                 getPlainText
+ * </pre>
+ */
+public final class EditTrace{
+    private static final String[] WORDS = {"the", "editor", "note", "meeting", "tomorrow", "a", "list", "of",
+        "things", "to", "remember", "and", "important", "is", "color", "bold", "text", "with", "some", "words"};
+    private static final String[] COLORS = {"ff0000", "00ff00", "0000ff"};
+
+    public enum Kind{edit, span, save}
+
+    public static final class Operation{
+        public final Kind kind;
+        public final int start;
+        //Removed characters for an edit, end for a span
+        public final int end;
+        public final String text;
+        public final SpanType type;
+
+        Operation(Kind kind, int start, int end, String text, SpanType type){
+            this.kind = kind;
+            this.start = start;
+            this.end = end;
+            this.text = text;
+            this.type = type;
+        }
+    }
+
+    private final int mDocumentSize;
+    private final long mDocumentSeed;
+    private final ArrayList<Operation> mOperations;
+
+    private EditTrace(int documentSize, long documentSeed, ArrayList<Operation> operations){
+        mDocumentSize = documentSize;
+        mDocumentSeed = documentSeed;
+        mOperations = operations;
+    }
+
+    public String getDocument(){
+        return Documents.generate(mDocumentSize, mDocumentSeed);
+    }
+
+    public List<Operation> getOperations(){
+        return mOperations;
+    }
+
+    /**
+     * Generate a session on a generated document: typing runs at a cursor which sometimes jumps, backspaces,
+     * autocorrected words, deleted selections and pastes which cross tags, formatted selections and now and
+     * then a save
+     * @param documentSize Approximate length of the HTML of the start document
+     * @param documentSeed Seed of the start document
+     * @param seed Seed of the operations
+     * @param count Number of operations
+     */
+    public static EditTrace generate(int documentSize, long documentSeed, long seed, int count){
+        Random random = new Random(seed);
+        //Only the visible text is needed to keep the positions valid
+        HTMLDocument document = new HTMLDocument();
+        document.setText(Documents.generate(documentSize, documentSeed));
+        StringBuilder text = new StringBuilder(document.getVisibleText());
+        ArrayList<Operation> operations = new ArrayList<>(count);
+        int cursor = random.nextInt(text.length() + 1);
+        SpanType[] types = SpanType.values();
+
+        while(operations.size() < count){
+            int action = random.nextInt(100);
+            if(action < 3 || cursor > text.length()){
+                cursor = random.nextInt(text.length() + 1);
+                continue;
+            }
+
+            Operation operation;
+            if(action < 70){
+                //Typing, one character per event
+                String typed = random.nextInt(12) == 0 ? " " : random.nextInt(40) == 0 ? "\n" :
+                    String.valueOf((char) ('a' + random.nextInt(26)));
+                operation = new Operation(Kind.edit, cursor, 0, typed, null);
+            }
+            else if(action < 82){
+                if(cursor == 0)
+                    continue;
+                operation = new Operation(Kind.edit, cursor - 1, 1, "", null);
+            }
+            else if(action < 87){
+                //The IME replaces the word in front of the cursor with its correction
+                int wordStart = cursor;
+                while(wordStart > 0 && Character.isLetter(text.charAt(wordStart - 1)))
+                    --wordStart;
+                if(wordStart == cursor)
+                    continue;
+                operation = new Operation(Kind.edit, wordStart, cursor - wordStart, WORDS[random.nextInt(WORDS.length)] + " ", null);
+            }
+            else if(action < 91){
+                int end = Math.min(text.length(), cursor + 1 + random.nextInt(200));
+                if(end == cursor)
+                    continue;
+                operation = new Operation(Kind.edit, cursor, end - cursor, "", null);
+            }
+            else if(action < 93){
+                StringBuilder pasted = new StringBuilder();
+                for(int iWord = random.nextInt(50); iWord >= 0; --iWord)
+                    pasted.append(WORDS[random.nextInt(WORDS.length)]).append(iWord % 10 == 9 ? '\n' : ' ');
+                operation = new Operation(Kind.edit, cursor, 0, pasted.toString(), null);
+            }
+            else if(action < 99){
+                int start = Math.max(0, cursor - random.nextInt(80));
+                int end = Math.min(text.length(), cursor + random.nextInt(80));
+                if(start >= end)
+                    continue;
+                SpanType type = types[random.nextInt(types.length)];
+                operation = new Operation(Kind.span, start, end, type == SpanType.color ? COLORS[random.nextInt(COLORS.length)] : null, type);
+            }
+            else{
+                operation = new Operation(Kind.save, 0, 0, null, null);
+            }
+
+            if(operation.kind == Kind.edit){
+                text.replace(operation.start, operation.start + operation.end, operation.text);
+                cursor = operation.start + operation.text.length();
+            }
+            operations.add(operation);
+        }
+        return new EditTrace(documentSize, documentSeed, operations);
+    }
+
+    public void write(Writer out) throws IOException{
+        out.write("document " + mDocumentSize + " " + mDocumentSeed + "\n");
+        for(Operation operation: mOperations){
+            switch(operation.kind){
+                case edit:
+                    out.write("edit " + operation.start + " " + operation.end + " " + escape(operation.text) + "\n");
+                    break;
+                case span:
+                    out.write("span " + operation.start + " " + operation.end + " " + operation.type +
+                        (operation.text != null ? " " + operation.text : "") + "\n");
+                    break;
+                case save:
+                    out.write("save\n");
+                    break;
+            }
+        }
+    }
+
+    /**
+     * @throws IOException If in is no trace
+     */
+    public static EditTrace read(Reader in) throws IOException{
+        BufferedReader reader = new BufferedReader(in);
+        String line = reader.readLine();
+        if(line == null || !line.startsWith("document "))
+            throw new IOException("No edit trace");
+        String[] document = line.split(" ");
+        ArrayList<Operation> operations = new ArrayList<>();
+        try {
+            while((line = reader.readLine()) != null){
+                if(line.isEmpty())
+                    continue;
+                //The text of an edit may contain spaces, it is everything behind the third one
+                String[] parts = line.split(" ", 4);
+                if(parts[0].equals("edit"))
+                    operations.add(new Operation(Kind.edit, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        parts.length > 3 ? unescape(parts[3]) : "", null));
+                else if(parts[0].equals("span")){
+                    parts = line.split(" ");
+                    operations.add(new Operation(Kind.span, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        parts.length > 4 ? parts[4] : null, SpanType.valueOf(parts[3])));
+                }
+                else if(parts[0].equals("save"))
+                    operations.add(new Operation(Kind.save, 0, 0, null, null));
+                else
+                    throw new IOException("Unknown operation: " + line);
+            }
+            return new EditTrace(Integer.parseInt(document[1]), Long.parseLong(document[2]), operations);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid line: " + line, e);
+        }
+    }
+
+    private static String escape(String text){
+        return text.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String unescape(String text){
+        StringBuilder result = new StringBuilder(text.length());
+        for(int iChar = 0; iChar < text.length(); ++iChar){
+            char c = text.charAt(iChar);
+            if(c == '\\' && iChar + 1 < text.length())
+                c = text.charAt(++iChar) == 'n' ? '\n' : text.charAt(iChar);
+            result.append(c);
+        }
+        return result.toString();
+    }
+}
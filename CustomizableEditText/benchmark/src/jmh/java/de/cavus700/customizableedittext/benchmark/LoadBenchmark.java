@@ -0,0 +1,58 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import de.cavus700.customizableedittext.model.DocumentSnapshot;
+import de.cavus700.customizableedittext.model.HTMLDocument;
+import de.cavus700.customizableedittext.model.SegmentedDocument;
+
+/**
+ * Parsing a saved note into the element list
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoadBenchmark{
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    private String mHtml;
+    private byte[] mSnapshot;
+
+    @Setup
+    public void setUp(){
+        mHtml = Documents.generate(size, 42);
+        HTMLDocument document = new HTMLDocument();
+        document.setText(mHtml);
+        mSnapshot = DocumentSnapshot.toBytes(document);
+    }
+
+    @Benchmark
+    public HTMLDocument load(){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(mHtml);
+        return document;
+    }
+
+    @Benchmark
+    public SegmentedDocument loadSegmented(){
+        SegmentedDocument document = new SegmentedDocument();
+        document.setText(mHtml);
+        return document;
+    }
+
+    @Benchmark
+    public HTMLDocument loadSnapshot() throws IOException{
+        return DocumentSnapshot.fromBytes(mSnapshot);
+    }
+}
@@ -0,0 +1,61 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import de.cavus700.customizableedittext.model.DocumentSnapshot;
+import de.cavus700.customizableedittext.model.HTMLDocument;
+
+/**
+ * Saving a note, either as String, streamed to a Writer or as binary snapshot
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializeBenchmark{
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    private HTMLDocument mDocument;
+    private final Writer mNullWriter = new Writer(){
+        @Override
+        public void write(char[] cbuf, int off, int len){}
+        @Override
+        public void write(String str, int off, int len){}
+        @Override
+        public void flush(){}
+        @Override
+        public void close(){}
+    };
+
+    @Setup
+    public void setUp(){
+        mDocument = new HTMLDocument();
+        mDocument.setText(Documents.generate(size, 42));
+    }
+
+    @Benchmark
+    public String getPlainText(){
+        return mDocument.getPlainText();
+    }
+
+    @Benchmark
+    public void writePlainText() throws IOException{
+        mDocument.writePlainText(mNullWriter);
+    }
+
+    @Benchmark
+    public byte[] toSnapshot(){
+        return DocumentSnapshot.toBytes(mDocument);
+    }
+}
@@ -0,0 +1,92 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.cavus700.customizableedittext.model.HTMLDocument;
+import de.cavus700.customizableedittext.model.Span;
+import de.cavus700.customizableedittext.model.SpanDocument;
+import de.cavus700.customizableedittext.model.SpanType;
+
+/**
+ * Formatting a selection of about one sentence
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpanBenchmark{
+    private static final SpanType[] TYPES = SpanType.values();
+
+    @Param({"1024", "16384", "131072", "1048576"})
+    public int size;
+
+    private HTMLDocument mDocument;
+    private SpanDocument mSpanDocument;
+    private Random mRandom;
+
+    @Setup(Level.Iteration)
+    public void setUp(){
+        mDocument = new HTMLDocument();
+        mDocument.setText(Documents.generate(size, 42));
+        mSpanDocument = new SpanDocument();
+        mSpanDocument.setText(Documents.generate(size, 42));
+        mRandom = new Random(7);
+    }
+
+    @Benchmark
+    public boolean addSpan(){
+        int length = mDocument.length();
+        int start = mRandom.nextInt(Math.max(1, length - 80));
+        int end = Math.min(length, start + 1 + mRandom.nextInt(80));
+        return mDocument.addSpan(start, end, TYPES[mRandom.nextInt(TYPES.length)], "00ff00");
+    }
+
+    @Benchmark
+    public boolean toggleSpan(){
+        int length = mDocument.length();
+        int start = mRandom.nextInt(Math.max(1, length - 80));
+        int end = Math.min(length, start + 1 + mRandom.nextInt(80));
+        return mDocument.toggleSpan(start, end, TYPES[mRandom.nextInt(TYPES.length)], "00ff00");
+    }
+
+    @Benchmark
+    public int getSpansAt(){
+        int length = mDocument.length();
+        int start = mRandom.nextInt(Math.max(1, length - 80));
+        return mDocument.getSpansAt(start, Math.min(length, start + 80)).size();
+    }
+
+    /**
+     * Like highlighting 100 search results
+     */
+    @Benchmark
+    public boolean addSpans(){
+        int length = mDocument.length();
+        ArrayList<Span> spans = new ArrayList<>();
+        for(int iSpan = 0; iSpan < 100; ++iSpan){
+            int start = mRandom.nextInt(Math.max(1, length - 10));
+            spans.add(new Span(start, Math.min(length, start + 1 + mRandom.nextInt(10)), SpanType.color, "ffff00"));
+        }
+        return mDocument.addSpans(spans);
+    }
+
+    @Benchmark
+    public int addSpanToSpanDocument(){
+        int length = mSpanDocument.length();
+        int start = mRandom.nextInt(Math.max(1, length - 80));
+        int end = Math.min(length, start + 1 + mRandom.nextInt(80));
+        mSpanDocument.addSpan(start, end, TYPES[mRandom.nextInt(TYPES.length)], "00ff00");
+        return mSpanDocument.length();
+    }
+}
@@ -0,0 +1,107 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import de.cavus700.customizableedittext.model.HTMLDocument;
+import de.cavus700.customizableedittext.model.Span;
+import de.cavus700.customizableedittext.model.SpanType;
+
+/**
+ * Independent model of a document for {@link TraceReplay}: the visible text and the style of each character.
+ * It knows nothing about tags, so an edit can't change the style of the characters it doesn't touch.
+ * Typed text gets the style the document gives it, the model may choose which style of its neighbours it
+ * continues.
+ */
+final class StyleReference{
+    //Bits of bold, underline and italic, the color index is stored above them
+    private static final int COLOR_SHIFT = SpanType.color.ordinal();
+
+    private final StringBuilder mText;
+    //One char per char of the text with its style
+    private final StringBuilder mStyles;
+    //Index + 1 of a color is stored in the style, 0 is no color
+    private final ArrayList<String> mColors = new ArrayList<>();
+    private final HashMap<String, Integer> mColorIndices = new HashMap<>();
+
+    StyleReference(HTMLDocument document){
+        mText = new StringBuilder(document.getVisibleText());
+        mStyles = new StringBuilder(getStyles(document, 0, mText.length()));
+    }
+
+    String getText(){
+        return mText.toString();
+    }
+
+    /**
+     * Replace text like an edit of the trace, the new text gets the styles it has in document after the edit
+     */
+    void replace(int start, int end, String text, HTMLDocument document){
+        mText.replace(start, end, text);
+        mStyles.replace(start, end, getStyles(document, start, start + text.length()));
+    }
+
+    /**
+     * Format the text like {@link HTMLDocument#addSpan(int, int, SpanType, String)}
+     */
+    void addSpan(int start, int end, SpanType type, String color){
+        for(int iChar = start; iChar < end; ++iChar){
+            int style = mStyles.charAt(iChar);
+            if(type == SpanType.color)
+                style = (style & ((1 << COLOR_SHIFT) - 1)) | (getColorIndex(color) << COLOR_SHIFT);
+            else
+                style |= 1 << type.ordinal();
+            mStyles.setCharAt(iChar, (char) style);
+        }
+    }
+
+    /**
+     * @return Null if document has the same text and styles or a description of the first difference
+     */
+    String compare(HTMLDocument document){
+        String text = document.getVisibleText();
+        if(!text.contentEquals(mText))
+            return "text differs";
+        String styles = getStyles(document, 0, text.length());
+        for(int iChar = 0; iChar < styles.length(); ++iChar){
+            if(styles.charAt(iChar) != mStyles.charAt(iChar))
+                return "style differs at " + iChar + ": " + describe(styles.charAt(iChar)) + " instead of " +
+                    describe(mStyles.charAt(iChar));
+        }
+        return null;
+    }
+
+    private String getStyles(HTMLDocument document, int start, int end){
+        char[] styles = new char[end - start];
+        List<Span> spans = document.getSpansAt(start, end);
+        for(Span span: spans){
+            int bits = span.getType() == SpanType.color ? getColorIndex(span.getColor()) << COLOR_SHIFT :
+                1 << span.getType().ordinal();
+            for(int iChar = span.getStart(); iChar < span.getEnd(); ++iChar)
+                styles[iChar - start] |= bits;
+        }
+        return new String(styles);
+    }
+
+    private int getColorIndex(String color){
+        Integer index = mColorIndices.get(color);
+        if(index == null){
+            mColors.add(color);
+            index = mColors.size();
+            mColorIndices.put(color, index);
+        }
+        return index;
+    }
+
+    private String describe(int style){
+        StringBuilder description = new StringBuilder("[");
+        for(SpanType type: SpanType.values()){
+            if(type != SpanType.color && (style & (1 << type.ordinal())) != 0)
+                description.append(type).append(' ');
+        }
+        int color = style >> COLOR_SHIFT;
+        description.append(color == 0 ? "no color" : mColors.get(color - 1)).append(']');
+        return description.toString();
+    }
+}
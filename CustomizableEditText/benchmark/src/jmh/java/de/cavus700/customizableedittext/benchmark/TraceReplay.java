@@ -0,0 +1,231 @@
+package de.cavus700.customizableedittext.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.cavus700.customizableedittext.model.HTMLDocument;
+
+/**
+ * Replays edit traces against the model without Android and reports the latency percentiles and the bytes
+ * allocated per operation. Before it is measured, each trace is replayed once with a {@link StyleReference}
+ * which has to have the same text and the same style of each character as the document after every operation.
+ * The saved HTML of the final document has to load again to the same text and styles. Without trace files
+ * the generated corpus of corpus.txt is replayed.
+ * <pre>
+ * TraceReplay [--gate] [trace files]
+ *   --gate  exit with 1 if a document differs from the reference or a p90 of the corpus is over its budget
+ * </pre>
+ * Run with ./gradlew :benchmark:replay
+ */
+public final class TraceReplay{
+    //Replays before the measured ones, so the JIT compiled the model
+    private static final int WARMUP_RUNS = 2;
+    //Each operation counts with its fastest run, a thread which was descheduled for a moment is no regression
+    private static final int MEASURED_RUNS = 3;
+
+    private final ThreadMXBean mThreads = ManagementFactory.getThreadMXBean();
+    private final boolean isAllocationMeasured;
+    //Per operation kind
+    private final long[][] mDurations = new long[EditTrace.Kind.values().length][];
+    private final int[] mCounts = new int[EditTrace.Kind.values().length];
+    private final long[] mAllocated = new long[EditTrace.Kind.values().length];
+
+    private TraceReplay(){
+        isAllocationMeasured = mThreads instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean) mThreads).isThreadAllocatedMemorySupported();
+    }
+
+    public static void main(String[] args) throws IOException{
+        boolean isGate = false;
+        ArrayList<String> files = new ArrayList<>();
+        for(String arg: args){
+            if(arg.equals("--gate"))
+                isGate = true;
+            else
+                files.add(arg);
+        }
+
+        boolean passed = true;
+        System.out.println(String.format("%-16s %-5s %8s %10s %10s %10s %10s %12s  %s", "trace", "op", "count",
+            "p50 us", "p90 us", "p99 us", "max us", "bytes/op", "state"));
+        if(files.isEmpty()){
+            for(String[] entry: readCorpus()){
+                //name, document size, document seed, trace seed, operations, p90 budgets in microseconds
+                EditTrace trace = EditTrace.generate(Integer.parseInt(entry[1]), Long.parseLong(entry[2]),
+                    Long.parseLong(entry[3]), Integer.parseInt(entry[4]));
+                long[] budgets = new long[EditTrace.Kind.values().length];
+                for(int iKind = 0; iKind < budgets.length; ++iKind)
+                    budgets[iKind] = Long.parseLong(entry[5 + iKind]) * 1000;
+                passed &= new TraceReplay().run(entry[0], trace, budgets);
+            }
+        }
+        for(String file: files){
+            Reader in = new FileReader(file);
+            try {
+                long[] budgets = new long[EditTrace.Kind.values().length];
+                Arrays.fill(budgets, Long.MAX_VALUE);
+                passed &= new TraceReplay().run(file, EditTrace.read(in), budgets);
+            } finally {
+                in.close();
+            }
+        }
+        if(isGate && !passed)
+            System.exit(1);
+    }
+
+    private static List<String[]> readCorpus() throws IOException{
+        InputStream in = TraceReplay.class.getResourceAsStream("/corpus.txt");
+        if(in == null)
+            throw new IOException("corpus.txt is missing");
+        ArrayList<String[]> entries = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null){
+                line = line.trim();
+                if(!line.isEmpty() && !line.startsWith("#"))
+                    entries.add(line.split("\\s+"));
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    /**
+     * @param p90Budgets Maximum p90 per operation kind in nanoseconds. The p99 is only reported, with the few
+     *                   saves and spans of a trace it is close to the slowest run.
+     * @return False if the document differs from the reference or a p90 is over its budget
+     */
+    private boolean run(String name, EditTrace trace, long[] p90Budgets){
+        String html = trace.getDocument();
+        String state = verify(html, trace);
+        long[] durations = new long[trace.getOperations().size()];
+        Arrays.fill(durations, Long.MAX_VALUE);
+        for(int iRun = 0; iRun < WARMUP_RUNS; ++iRun)
+            replay(html, trace, null);
+        for(int iRun = 0; iRun < MEASURED_RUNS; ++iRun)
+            replay(html, trace, durations);
+        collect(trace, durations);
+
+        boolean passed = state.equals("ok");
+        for(EditTrace.Kind kind: EditTrace.Kind.values()){
+            int count = mCounts[kind.ordinal()];
+            if(count == 0)
+                continue;
+            long[] sorted = Arrays.copyOf(mDurations[kind.ordinal()], count);
+            Arrays.sort(sorted);
+            long p90 = sorted[percentileIndex(count, 90)];
+            boolean isOverBudget = p90 > p90Budgets[kind.ordinal()];
+            passed &= !isOverBudget;
+            System.out.println(String.format("%-16s %-5s %8d %10.1f %10.1f %10.1f %10.1f %12s  %s", name, kind, count,
+                sorted[percentileIndex(count, 50)] / 1000.0, p90 / 1000.0, sorted[percentileIndex(count, 99)] / 1000.0,
+                sorted[count - 1] / 1000.0, isAllocationMeasured ? String.valueOf(mAllocated[kind.ordinal()] / count) : "-",
+                isOverBudget ? state + ", p90 over budget" : state));
+        }
+        return passed;
+    }
+
+    private static int percentileIndex(int count, int percentile){
+        return Math.min(count - 1, (int) Math.ceil(count * percentile / 100.0) - 1);
+    }
+
+    /**
+     * Group the durations by operation kind
+     */
+    private void collect(EditTrace trace, long[] durations){
+        List<EditTrace.Operation> operations = trace.getOperations();
+        for(int iKind = 0; iKind < mDurations.length; ++iKind)
+            mDurations[iKind] = new long[operations.size()];
+        for(int iOperation = 0; iOperation < operations.size(); ++iOperation){
+            int iKind = operations.get(iOperation).kind.ordinal();
+            mDurations[iKind][mCounts[iKind]++] = durations[iOperation];
+        }
+    }
+
+    /**
+     * @param durations Lowers the duration of each operation to the one of this run, null for a warmup.
+     *                  The allocation is recorded by the last measured run.
+     */
+    private void replay(String html, EditTrace trace, long[] durations){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+        List<EditTrace.Operation> operations = trace.getOperations();
+        boolean isMeasured = durations != null;
+        Arrays.fill(mAllocated, 0);
+
+        for(int iOperation = 0; iOperation < operations.size(); ++iOperation){
+            EditTrace.Operation operation = operations.get(iOperation);
+            int iKind = operation.kind.ordinal();
+            long allocatedBefore = isMeasured && isAllocationMeasured ? getAllocatedBytes() : 0;
+            long startTime = System.nanoTime();
+            apply(document, operation);
+            long duration = System.nanoTime() - startTime;
+            if(isMeasured){
+                if(isAllocationMeasured)
+                    mAllocated[iKind] += getAllocatedBytes() - allocatedBefore;
+                durations[iOperation] = Math.min(durations[iOperation], duration);
+            }
+        }
+    }
+
+    /**
+     * Replay the trace without measuring it and compare the document with the reference after each operation
+     * @return "ok" or what is wrong after the first operation which made the document differ
+     */
+    private static String verify(String html, EditTrace trace){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+        StyleReference reference = new StyleReference(document);
+        List<EditTrace.Operation> operations = trace.getOperations();
+        for(int iOperation = 0; iOperation < operations.size(); ++iOperation){
+            EditTrace.Operation operation = operations.get(iOperation);
+            apply(document, operation);
+            if(operation.kind == EditTrace.Kind.edit)
+                reference.replace(operation.start, operation.start + operation.end, operation.text, document);
+            else if(operation.kind == EditTrace.Kind.span)
+                reference.addSpan(operation.start, operation.end, operation.type, operation.text);
+            String difference = reference.compare(document);
+            if(difference != null)
+                return "operation " + iOperation + " " + operation.kind + ", " + difference;
+        }
+
+        HTMLDocument loaded = new HTMLDocument();
+        loaded.setText(document.getPlainText());
+        String difference = reference.compare(loaded);
+        return difference == null ? "ok" : "saved " + difference;
+    }
+
+    private long getAllocatedBytes(){
+        return ((com.sun.management.ThreadMXBean) mThreads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Apply the operation like the widget does it
+     */
+    private static void apply(HTMLDocument document, EditTrace.Operation operation){
+        switch(operation.kind){
+            case edit:
+                if(operation.end > 0)
+                    document.removeText(operation.start, operation.start + operation.end);
+                if(!operation.text.isEmpty())
+                    document.addText(operation.text, operation.start);
+                break;
+            case span:
+                document.addSpan(operation.start, operation.end, operation.type, operation.text);
+                break;
+            case save:
+                document.getPlainText();
+                break;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package de.cavus700.customizableedittext.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary form of the element list of a {@link HTMLDocument}. Restoring it doesn't parse any HTML.
+ * Layout: magic, version, flags, varint element count, then per element a type byte followed by a varint
+ * length and UTF-8 for text, three RGB bytes for a color or nothing for the other tags.
+ */
+public final class DocumentSnapshot{
+    private static final int MAGIC = 0xCE;
+    private static final int VERSION = 1;
+    private static final int FLAG_NESTED_TAGS = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int TYPE_TEXT = 0;
+    //Tags are 1 + 2 * ordinal of the SpanType, +1 for the closing tag
+    private static final int TYPE_FIRST_TAG = 1;
+    //Open color tag whose color is no lowercase RGB value, stored as text
+    private static final int TYPE_COLOR_NAME = TYPE_FIRST_TAG + 2 * SpanType.values().length;
+
+    private DocumentSnapshot(){}
+
+    public static byte[] toBytes(HTMLDocument document){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(document, out);
+        } catch (IOException e) {
+            //Never thrown by a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static HTMLDocument fromBytes(byte[] snapshot) throws IOException{
+        return read(new ByteArrayInputStream(snapshot));
+    }
+
+    /**
+     * Write the document normalized like {@link HTMLDocument#getPlainText()}. The undo history is not written.
+     * @param out Destination, should be buffered
+     */
+    public static void write(HTMLDocument document, OutputStream out) throws IOException{
+        List<HTMLElement> elements = document.getCleanElements();
+        out.write(MAGIC);
+        out.write(VERSION);
+        out.write(document.mayContainNestedTags() ? FLAG_NESTED_TAGS : 0);
+        writeVarInt(out, elements.size());
+        for(HTMLElement element: elements){
+            if(element instanceof HTMLText){
+                out.write(TYPE_TEXT);
+                writeString(out, element.getText());
+                continue;
+            }
+            if(element.isOpenTag() && element instanceof HTMLColor){
+                String color = ((HTMLColor) element).getColor();
+                if(!isRgb(color)){
+                    out.write(TYPE_COLOR_NAME);
+                    writeString(out, color);
+                    continue;
+                }
+                out.write(getTagType(element));
+                int rgb = Integer.parseInt(color, 16);
+                out.write(rgb >> 16);
+                out.write(rgb >> 8);
+                out.write(rgb);
+                continue;
+            }
+            out.write(getTagType(element));
+        }
+    }
+
+    /**
+     * @param in Source, should be buffered
+     * @return New document with the elements of the snapshot and an empty history
+     * @throws IOException If in is no snapshot of this version or ends too early
+     */
+    public static HTMLDocument read(InputStream in) throws IOException{
+        DataInputStream data = new DataInputStream(in);
+        if(data.readUnsignedByte() != MAGIC || data.readUnsignedByte() != VERSION)
+            throw new IOException("No document snapshot");
+        boolean mayContainNestedTags = (data.readUnsignedByte() & FLAG_NESTED_TAGS) != 0;
+        int count = readVarInt(data);
+        //The count is not trusted for the capacity
+        ArrayList<HTMLElement> elements = new ArrayList<>(Math.min(count, 1 << 16));
+        SpanType[] types = SpanType.values();
+        byte[] buffer = new byte[64];
+
+        for(int iElement = 0; iElement < count; ++iElement){
+            int type = data.readUnsignedByte();
+            if(type == TYPE_TEXT){
+                int length = readVarInt(data);
+                if(buffer.length < length)
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                data.readFully(buffer, 0, length);
+                elements.add(new HTMLText(new String(buffer, 0, length, UTF_8)));
+                continue;
+            }
+            if(type == TYPE_COLOR_NAME){
+                int length = readVarInt(data);
+                byte[] color = new byte[length];
+                data.readFully(color);
+                elements.add(HTMLColor.get(true, new String(color, UTF_8)));
+                continue;
+            }
+            int iType = (type - TYPE_FIRST_TAG) / 2;
+            if(type < TYPE_FIRST_TAG || iType >= types.length)
+                throw new IOException("Unknown element type " + type);
+            boolean isOpen = (type - TYPE_FIRST_TAG) % 2 == 0;
+            String color = null;
+            if(isOpen && types[iType] == SpanType.color){
+                int rgb = data.readUnsignedByte() << 16 | data.readUnsignedByte() << 8 | data.readUnsignedByte();
+                color = toHex(rgb);
+            }
+            elements.add(HTMLDocument.getNewElement(types[iType], isOpen, color));
+        }
+
+        HTMLDocument document = new HTMLDocument();
+        document.setElements(elements, mayContainNestedTags);
+        return document;
+    }
+
+    private static int getTagType(HTMLElement tag){
+        return TYPE_FIRST_TAG + 2 * tag.getType().ordinal() + (tag.isOpenTag() ? 0 : 1);
+    }
+
+    /**
+     * @return True if the color is written back the same way after packing it into three bytes
+     */
+    private static boolean isRgb(String color){
+        if(color.length() != 6)
+            return false;
+        for(int iChar = 0; iChar < 6; ++iChar){
+            char c = color.charAt(iChar);
+            if((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    private static String toHex(int rgb){
+        char[] chars = new char[6];
+        for(int iChar = 5; iChar >= 0; --iChar){
+            chars[iChar] = Character.forDigit(rgb & 0xF, 16);
+            rgb >>= 4;
+        }
+        return new String(chars);
+    }
+
+    private static void writeString(OutputStream out, String text) throws IOException{
+        byte[] bytes = text.getBytes(UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException{
+        while((value & ~0x7F) != 0){
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException{
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0){
+                if(value < 0)
+                    break;
+                return value;
+            }
+        }
+        throw new IOException("Invalid length");
+    }
+}
@@ -0,0 +1,247 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Undo and redo stacks of a {@link HTMLDocument}. Every change of the element list is recorded as a small
+ * {@link Change} which can be applied in both directions, so a step only stores what it changed.
+ * Consecutive keystrokes are coalesced into one step.
+ */
+class EditHistory{
+    static final int ADD = 0;
+    static final int REMOVE = 1;
+    static final int INSERT_TEXT = 2;
+    static final int DELETE_TEXT = 3;
+    static final int SET = 4;
+    static final int REPLACE = 5;
+
+    //Rough size of a change without its text in chars
+    private static final int CHANGE_OVERHEAD = 16;
+
+    /**
+     * One primitive change of the element list
+     */
+    static class Change{
+        final int kind;
+        final int index;
+        //Position in the text element for INSERT_TEXT and DELETE_TEXT
+        final int pos;
+        final String text;
+        //Added or removed element, for SET the new one
+        final HTMLElement element;
+        final HTMLElement oldElement;
+        //Elements replaced at index for REPLACE
+        final List<HTMLElement> removed;
+        final List<HTMLElement> added;
+
+        private Change(int kind, int index, int pos, String text, HTMLElement element, HTMLElement oldElement,
+                       List<HTMLElement> removed, List<HTMLElement> added){
+            this.kind = kind;
+            this.index = index;
+            this.pos = pos;
+            this.text = text;
+            this.element = element;
+            this.oldElement = oldElement;
+            this.removed = removed;
+            this.added = added;
+        }
+
+        static Change add(int index, HTMLElement element){
+            return new Change(ADD, index, 0, null, element, null, null, null);
+        }
+
+        static Change remove(int index, HTMLElement element){
+            return new Change(REMOVE, index, 0, null, element, null, null, null);
+        }
+
+        static Change insertText(int index, int pos, String text){
+            return new Change(INSERT_TEXT, index, pos, text, null, null, null, null);
+        }
+
+        static Change deleteText(int index, int pos, String text){
+            return new Change(DELETE_TEXT, index, pos, text, null, null, null, null);
+        }
+
+        static Change set(int index, HTMLElement oldElement, HTMLElement element){
+            return new Change(SET, index, 0, null, element, oldElement, null, null);
+        }
+
+        static Change replace(int index, List<HTMLElement> removed, List<HTMLElement> added){
+            return new Change(REPLACE, index, 0, null, null, null, removed, added);
+        }
+
+        int getSize(){
+            int size = CHANGE_OVERHEAD;
+            if(text != null)
+                size += text.length();
+            if(removed != null)
+                size += removed.size() + added.size();
+            return size;
+        }
+    }
+
+    /**
+     * Changes of one undo step
+     */
+    static class Step{
+        final ArrayList<Change> changes = new ArrayList<>();
+        int size = 0;
+        boolean isTyping;
+        //Range of the visible text which was typed in this step
+        int typedStart;
+        int typedEnd;
+    }
+
+    private final ArrayDeque<Step> mUndoSteps = new ArrayDeque<>();
+    private final ArrayDeque<Step> mRedoSteps = new ArrayDeque<>();
+    //Step on top of the undo stack which still gets the changes, null after undo or redo
+    private Step mOpenStep;
+    //Changes of a clean up which ran after undo or redo. They are reverted before the next undo or redo.
+    private Step mPendingStep;
+    //The open step was too big for the budget, its changes are dropped
+    private boolean isDiscarding = false;
+    private int mSize = 0;
+    private int mMaxSteps = 100;
+    private int mMaxSize = 1 << 20;
+
+    void setLimits(int maxSteps, int maxSize){
+        mMaxSteps = maxSteps;
+        mMaxSize = maxSize;
+        trim();
+    }
+
+    boolean canUndo(){
+        return !mUndoSteps.isEmpty();
+    }
+
+    boolean canRedo(){
+        return !mRedoSteps.isEmpty();
+    }
+
+    void clear(){
+        mUndoSteps.clear();
+        mRedoSteps.clear();
+        mOpenStep = null;
+        mPendingStep = null;
+        isDiscarding = false;
+        mSize = 0;
+    }
+
+    /**
+     * Start a step for typed text unless it continues the typing of the open step
+     * @param start Start of the replaced range in the visible text
+     * @param end End of the replaced range in the visible text
+     * @param text Inserted text
+     */
+    void beginTyping(int start, int end, String text){
+        Step step = mOpenStep;
+        if(step == null || !step.isTyping || isDiscarding || end < step.typedStart || start > step.typedEnd){
+            step = beginStep();
+            step.isTyping = true;
+            step.typedStart = start;
+            step.typedEnd = start;
+        }
+        else{
+            step.typedStart = Math.min(step.typedStart, start);
+            step.typedEnd = Math.max(start, step.typedEnd - (end - start));
+        }
+        step.typedEnd += text.length();
+        //A new line ends the step
+        if(text.indexOf('\n') >= 0)
+            step.isTyping = false;
+    }
+
+    /**
+     * Start a step which is never coalesced, e.g. for formatting
+     */
+    void beginAction(){
+        beginStep();
+    }
+
+    private Step beginStep(){
+        Step step = new Step();
+        //The pending clean up happened before this step, so undo has to revert it too
+        if(mPendingStep != null){
+            step.changes.addAll(mPendingStep.changes);
+            step.size = mPendingStep.size;
+            mPendingStep = null;
+        }
+        mSize += step.size;
+        for(Step redoStep: mRedoSteps)
+            mSize -= redoStep.size;
+        mRedoSteps.clear();
+        mUndoSteps.push(step);
+        mOpenStep = step;
+        isDiscarding = false;
+        trim();
+        return step;
+    }
+
+    void record(Change change){
+        if(isDiscarding)
+            return;
+        Step step = mOpenStep;
+        if(step == null){
+            if(mPendingStep == null)
+                mPendingStep = new Step();
+            step = mPendingStep;
+        }
+        step.changes.add(change);
+        int size = change.getSize();
+        step.size += size;
+        if(step != mPendingStep){
+            mSize += size;
+            trim();
+        }
+    }
+
+    /**
+     * @return Step to revert before an undo or a redo, or null
+     */
+    Step takePendingStep(){
+        Step step = mPendingStep;
+        mPendingStep = null;
+        mOpenStep = null;
+        isDiscarding = false;
+        return step;
+    }
+
+    /**
+     * @return Step to revert or null if there is none
+     */
+    Step undo(){
+        Step step = mUndoSteps.poll();
+        if(step != null)
+            mRedoSteps.push(step);
+        return step;
+    }
+
+    /**
+     * @return Step to apply again or null if there is none
+     */
+    Step redo(){
+        Step step = mRedoSteps.poll();
+        if(step != null)
+            mUndoSteps.push(step);
+        return step;
+    }
+
+    /**
+     * Drop the oldest steps until the budget is kept
+     */
+    private void trim(){
+        while(!mRedoSteps.isEmpty() && (mSize > mMaxSize || mUndoSteps.size() + mRedoSteps.size() > mMaxSteps))
+            mSize -= mRedoSteps.removeLast().size;
+        while(!mUndoSteps.isEmpty() && (mSize > mMaxSize || mUndoSteps.size() > mMaxSteps)){
+            Step step = mUndoSteps.removeLast();
+            mSize -= step.size;
+            //The step which is still recorded can't be undone completely anymore
+            if(step == mOpenStep){
+                mOpenStep = null;
+                isDiscarding = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Myers diff of two element lists. Text elements are the same if they have the same text,
+ * tags are the same if they are the same shared instance.
+ */
+final class ElementDiff{
+    private ElementDiff(){}
+
+    static boolean isSame(HTMLElement first, HTMLElement second){
+        if(first instanceof HTMLText)
+            return second instanceof HTMLText && first.getText().equals(second.getText());
+        return first == second;
+    }
+
+    /**
+     * Find the ranges which have to be replaced to turn [oldStart, oldEnd) of oldElements into
+     * [newStart, newEnd) of newElements
+     * @param maxEdits Maximum number of inserted and removed elements, the memory grows with its square
+     * @return Ranges as {oldStart, oldEnd, newStart, newEnd} in ascending order or null if more edits are needed
+     */
+    static List<int[]> diff(List<HTMLElement> oldElements, int oldStart, int oldEnd,
+                            List<HTMLElement> newElements, int newStart, int newEnd, int maxEdits){
+        int oldCount = oldEnd - oldStart;
+        int newCount = newEnd - newStart;
+        int max = Math.min(oldCount + newCount, maxEdits);
+        //Furthest x per diagonal k = x - y, stored at k + max + 1
+        int offset = max + 1;
+        int[] furthest = new int[2 * max + 3];
+        //Diagonals before each round, only the part which can be reached is kept
+        ArrayList<int[]> trace = new ArrayList<>();
+
+        for(int d = 0; d <= max; ++d){
+            int[] snapshot = new int[2 * d + 3];
+            System.arraycopy(furthest, offset - d - 1, snapshot, 0, snapshot.length);
+            trace.add(snapshot);
+
+            for(int k = -d; k <= d; k += 2){
+                int x;
+                if(k == -d || (k != d && furthest[offset + k - 1] < furthest[offset + k + 1]))
+                    x = furthest[offset + k + 1];
+                else
+                    x = furthest[offset + k - 1] + 1;
+                int y = x - k;
+                while(x < oldCount && y < newCount &&
+                    isSame(oldElements.get(oldStart + x), newElements.get(newStart + y))){
+                    ++x;
+                    ++y;
+                }
+                furthest[offset + k] = x;
+                if(x >= oldCount && y >= newCount)
+                    return toRanges(trace, oldCount, newCount, oldStart, newStart);
+            }
+        }
+        return null;
+    }
+
+    private static List<int[]> toRanges(List<int[]> trace, int oldCount, int newCount, int oldStart, int newStart){
+        boolean[] removed = new boolean[oldCount];
+        boolean[] added = new boolean[newCount];
+        int x = oldCount;
+        int y = newCount;
+        for(int d = trace.size() - 1; d > 0; --d){
+            int[] furthest = trace.get(d);
+            //Diagonal k is at k + d + 1 in the snapshot of round d
+            int k = x - y;
+            int prevK = k == -d || (k != d && furthest[k - 1 + d + 1] < furthest[k + 1 + d + 1]) ? k + 1 : k - 1;
+            int prevX = furthest[prevK + d + 1];
+            int prevY = prevX - prevK;
+            //Skip the equal elements back to the edit
+            while(x > prevX && y > prevY){
+                --x;
+                --y;
+            }
+            if(x == prevX)
+                added[prevY] = true;
+            else
+                removed[prevX] = true;
+            x = prevX;
+            y = prevY;
+        }
+
+        //Equal elements are in the same order in both lists, the ranges are between them
+        ArrayList<int[]> ranges = new ArrayList<>();
+        int iOld = 0;
+        int iNew = 0;
+        while(iOld < oldCount || iNew < newCount){
+            if(iOld < oldCount && iNew < newCount && !removed[iOld] && !added[iNew]){
+                ++iOld;
+                ++iNew;
+                continue;
+            }
+            int rangeOld = iOld;
+            int rangeNew = iNew;
+            while(iOld < oldCount && removed[iOld])
+                ++iOld;
+            while(iNew < newCount && added[iNew])
+                ++iNew;
+            ranges.add(new int[]{oldStart + rangeOld, oldStart + iOld, newStart + rangeNew, newStart + iNew});
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,9 @@
+package de.cavus700.customizableedittext.model;
+
+public class HTMLBold extends HTMLElement{
+    static final HTMLBold OPEN = new HTMLBold(true);
+    static final HTMLBold CLOSE = new HTMLBold(false);
+
+    private HTMLBold(boolean isOpenTag){super(SpanType.bold, isOpenTag, isOpenTag ? "<b>":"</b>");}
+    static HTMLBold get(boolean isOpenTag){return isOpenTag ? OPEN : CLOSE;}
+}
@@ -0,0 +1,50 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HTMLColor extends HTMLElement{
+    static final HTMLColor CLOSE = new HTMLColor(false, "");
+    //Interned colors are never released, so the map only takes canonical colors up to this count
+    private static final int MAX_INTERNED_COLORS = 4096;
+    //One open tag per color, documents are also parsed on background threads
+    private static final ConcurrentHashMap<String, HTMLColor> sOpenTags = new ConcurrentHashMap<>();
+
+    private final String color;
+
+    private HTMLColor(boolean isOpenTag, String color){super(SpanType.color, isOpenTag, isOpenTag ? "<font color=\"#"+color+"\">":"</font>"); this.color = color;}
+    public String getColor(){return color;}
+
+    /**
+     * @param color Color of an open tag as hex digits without '#'
+     * @throws IllegalArgumentException If the color of an open tag is null
+     */
+    static HTMLColor get(boolean isOpenTag, String color){
+        if(!isOpenTag)
+            return CLOSE;
+        if(color == null)
+            throw new IllegalArgumentException("An open color tag needs a color");
+        HTMLColor tag = sOpenTags.get(color);
+        if(tag != null)
+            return tag;
+        HTMLColor newTag = new HTMLColor(true, color);
+        //Other colors, e.g. of pasted HTML, get their own tag which is freed with their document
+        if(!isCanonical(color) || sOpenTags.size() >= MAX_INTERNED_COLORS)
+            return newTag;
+        tag = sOpenTags.putIfAbsent(color, newTag);
+        return tag != null ? tag : newTag;
+    }
+
+    /**
+     * @return True for six lowercase hex digits like the colors of the widget
+     */
+    private static boolean isCanonical(String color){
+        if(color.length() != 6)
+            return false;
+        for(int iChar = 0; iChar < 6; ++iChar){
+            char c = color.charAt(iChar);
+            if((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,1754 @@
+package de.cavus700.customizableedittext.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Text with the supported tags &lt;b&gt;, &lt;i&gt;, &lt;u&gt; and &lt;font color="..."&gt; stored as a list of
+ * text and tag elements. Positions are always positions in the visible text without tags.
+ */
+public class HTMLDocument{
+    private static final String[] SUPPORTED_TAGS = {"<b>", "</b>", "<u>", "</u>", "<i>", "</i>", "</font>"};
+    //Only colors as #rrggbb are supported, other font tags stay text
+    static final Pattern FONT_TAG = Pattern.compile("<font color=\"#[0-9a-fA-F]{6}\">");
+    private static final int FONT_COLOR_START = "<font color=\"#".length();
+    private static final Pattern LINE_BREAK = Pattern.compile("<br/>", Pattern.LITERAL);
+    //Bigger differences replace the whole changed range, the diff needs memory in the square of it
+    private static final int MAX_DIFF_EDITS = 512;
+    //Buffers which grew larger than this for one text are not kept for the next one
+    private static final int MAX_KEPT_BUFFER_SIZE = 64 * 1024;
+
+    private ArrayList<HTMLElement> mHtmlElements = new ArrayList<>();
+    private TextPositionIndex mPositionIndex = new TextPositionIndex();
+    private boolean isPositionIndexValid = false;
+    //Built from the same elements as the position index, see getTagDepthIndex
+    private final TagDepthIndex mTagDepthIndex = new TagDepthIndex();
+    private int mPositionIndexBuilds = 0;
+    private int mTagDepthIndexBuild = -1;
+    //Range of element indices which changed since the last CleanUp
+    private int mDirtyStart = Integer.MAX_VALUE;
+    private int mDirtyEnd = 0;
+    private boolean mayContainNestedTags = false;
+    //Reused for getPlainText and toHtml
+    private final StringBuilder mHtmlBuilder = new StringBuilder();
+    private final EditHistory mHistory = new EditHistory();
+    //False while a document is loaded or a step is undone or redone
+    private boolean isRecording = true;
+    private MetricsListener mMetricsListener;
+    //Text element which gets the text typed with a style and its style, see addText(String, int, Set, String)
+    private HTMLText mTypingRun;
+    private int mTypingRunIndex;
+    private final EnumSet<SpanType> mTypingStyles = EnumSet.noneOf(SpanType.class);
+    private String mTypingColor;
+
+    /**
+     * Replace the document with text which only contains the supported tags.
+     * In the best case only text got with {@link #getPlainText()}
+     * @param text Text to parse, may be null
+     */
+    public void setText(String text){
+        mHtmlElements = new ArrayList<>();
+        isPositionIndexValid = false;
+        mDirtyStart = Integer.MAX_VALUE;
+        mDirtyEnd = 0;
+        mHistory.clear();
+        if(text != null && text.length() > 0) {
+            long startTime = startMetric(Metric.parse);
+            int htmlLength = text.length();
+            text = LINE_BREAK.matcher(text).replaceAll("\n");
+
+            isRecording = false;
+            parseText(text);
+            isRecording = true;
+            finishMetric(Metric.parse, startTime, htmlLength);
+        }
+    }
+
+    /**
+     * Replace the document with the elements of another document, e.g. one which was parsed on a background thread.
+     * The other document is empty afterwards. The history of this document is cleared, its limits are kept.
+     * @param parsed Document to take the elements from
+     */
+    public void setText(HTMLDocument parsed){
+        mHtmlElements = parsed.mHtmlElements;
+        mayContainNestedTags = parsed.mayContainNestedTags;
+        mDirtyStart = parsed.mDirtyStart;
+        mDirtyEnd = parsed.mDirtyEnd;
+        isPositionIndexValid = false;
+        mHistory.clear();
+        parsed.setText((String) null);
+    }
+
+    /**
+     * Take over elements restored by {@link DocumentSnapshot}, they are normalized already
+     */
+    void setElements(ArrayList<HTMLElement> elements, boolean mayContainNestedTags){
+        setText((String) null);
+        mHtmlElements = elements;
+        this.mayContainNestedTags = mayContainNestedTags;
+    }
+
+    /**
+     * @return The elements normalized like for {@link #getPlainText()}
+     */
+    List<HTMLElement> getCleanElements(){
+        CleanUp();
+        return getElements();
+    }
+
+    /**
+     * Remove all nested tags and not only one like {@link #getPlainText()} does per call
+     */
+    void normalize(){
+        boolean removedNestedTag = true;
+        while(removedNestedTag)
+            removedNestedTag = CleanUp();
+    }
+
+    boolean mayContainNestedTags(){
+        return mayContainNestedTags;
+    }
+
+    /**
+     * Change the document into the one of html with as few changes as possible, e.g. for a new version of the
+     * same text. Equal elements at the start and the end are kept, the rest is compared with a diff.
+     * If only the text of one element changed, only the changed characters are replaced.
+     * The change can be undone in one step.
+     * @param html Text which only contains the supported tags
+     * @return False if html has the same content as the document
+     */
+    public boolean replaceContent(String html){
+        HTMLDocument parsed = new HTMLDocument();
+        parsed.setText(html);
+        parsed.CleanUp();
+        CleanUp();
+        List<HTMLElement> newElements = parsed.mHtmlElements;
+        int oldCount = mHtmlElements.size();
+        int newCount = newElements.size();
+
+        int prefix = 0;
+        while(prefix < oldCount && prefix < newCount && ElementDiff.isSame(mHtmlElements.get(prefix), newElements.get(prefix)))
+            ++prefix;
+        if(prefix == oldCount && prefix == newCount)
+            return false;
+        int suffix = 0;
+        while(suffix < oldCount - prefix && suffix < newCount - prefix &&
+            ElementDiff.isSame(mHtmlElements.get(oldCount - 1 - suffix), newElements.get(newCount - 1 - suffix)))
+            ++suffix;
+
+        List<int[]> ranges = ElementDiff.diff(mHtmlElements, prefix, oldCount - suffix, newElements, prefix,
+            newCount - suffix, MAX_DIFF_EDITS);
+        if(ranges == null)
+            ranges = Collections.singletonList(new int[]{prefix, oldCount - suffix, prefix, newCount - suffix});
+
+        if(isRecording)
+            mHistory.beginAction();
+        //From the back so the indices of the ranges in front stay valid
+        for(int iRange = ranges.size() - 1; iRange >= 0; --iRange){
+            int[] range = ranges.get(iRange);
+            if(range[1] - range[0] == 1 && range[3] - range[2] == 1 &&
+                mHtmlElements.get(range[0]) instanceof HTMLText && newElements.get(range[2]) instanceof HTMLText){
+                replaceInElement(range[0], newElements.get(range[2]).getText());
+                continue;
+            }
+            ArrayList<HTMLElement> removed = new ArrayList<>(mHtmlElements.subList(range[0], range[1]));
+            ArrayList<HTMLElement> added = new ArrayList<>(newElements.subList(range[2], range[3]));
+            record(EditHistory.Change.replace(range[0], removed, added));
+            replaceElements(range[0], removed, added);
+        }
+
+        //The elements are the normalized ones of parsed now
+        mDirtyStart = Integer.MAX_VALUE;
+        mDirtyEnd = 0;
+        mayContainNestedTags = parsed.mayContainNestedTags;
+        return true;
+    }
+
+    /**
+     * Replace the text of a text element, only the characters between the common prefix and suffix change
+     */
+    private void replaceInElement(int index, String newText){
+        HTMLText element = (HTMLText) mHtmlElements.get(index);
+        String oldText = element.getText();
+        int prefix = 0;
+        while(prefix < oldText.length() && prefix < newText.length() && oldText.charAt(prefix) == newText.charAt(prefix))
+            ++prefix;
+        int suffix = 0;
+        while(suffix < oldText.length() - prefix && suffix < newText.length() - prefix &&
+            oldText.charAt(oldText.length() - 1 - suffix) == newText.charAt(newText.length() - 1 - suffix))
+            ++suffix;
+        deleteFromElement(index, prefix, oldText.length() - suffix);
+        if(prefix < newText.length() - suffix)
+            insertIntoElement(index, prefix, newText.substring(prefix, newText.length() - suffix));
+    }
+
+    /**
+     * @return The visible text without tags
+     */
+    public String getVisibleText(){
+        StringBuilder text = new StringBuilder(length());
+        appendVisibleText(text);
+        return text.toString();
+    }
+
+    void appendVisibleText(StringBuilder out){
+        for(HTMLElement element: mHtmlElements){
+            if(element instanceof HTMLText)
+                ((HTMLText) element).appendTo(out);
+        }
+    }
+
+    /**
+     * @return The visible text between two positions
+     */
+    public String getVisibleText(int start, int end){
+        StringBuilder text = new StringBuilder(Math.max(0, end - start));
+        if(start >= end)
+            return text.toString();
+        int pos = start;
+        for(int iEle = getElementIndexForPosition(start); iEle >= 0 && iEle < mHtmlElements.size() && pos < end; ++iEle){
+            HTMLElement element = mHtmlElements.get(iEle);
+            if(!(element instanceof HTMLText))
+                continue;
+            int posInElement = getPosInHtmlTextElement(pos, iEle);
+            int count = Math.min(element.getSize() - posInElement, end - pos);
+            text.append(((HTMLText) element).substring(posInElement, posInElement + count));
+            pos += count;
+        }
+        return text.toString();
+    }
+
+    public boolean isEmpty(){
+        return mHtmlElements.isEmpty();
+    }
+
+    /**
+     * @return Length of the visible text
+     */
+    public int length(){
+        return getPositionIndex().getSizeBefore(mHtmlElements.size());
+    }
+
+    /**
+     * @return Read only view of the elements
+     */
+    public List<HTMLElement> getElements(){
+        return Collections.unmodifiableList(mHtmlElements);
+    }
+
+    /**
+     * Insert text which was typed at a position of the visible text
+     * @param textToAdd New text
+     * @param start Position in the visible text
+     */
+    public void addText(String textToAdd, int start){
+        if(textToAdd.length() == 0)
+            return;
+        if(isRecording)
+            mHistory.beginTyping(start, start, textToAdd);
+        //We have no HTMLText so create it
+        if(mHtmlElements.isEmpty()){
+            addElement(new HTMLText(textToAdd));
+            return;
+        }
+
+        int indexOfTextElement = getElementIndexForPosition(start);
+        //Only tags are left, e.g. after all text was deleted
+        if(indexOfTextElement < 0){
+            addElement(new HTMLText(textToAdd));
+            return;
+        }
+        HTMLText htmlText = (HTMLText) mHtmlElements.get(indexOfTextElement);
+        int posInElement = getPosInHtmlTextElement(start, indexOfTextElement);
+        boolean isEndOfText = htmlText.getSize() == posInElement;
+
+        //Has next element
+        boolean isNextElementClosingTag = indexOfTextElement < mHtmlElements.size() - 1 &&
+            //Is next element closing tag and
+            (!mHtmlElements.get(indexOfTextElement+1).isOpenTag() &&
+                //Is next element no text element
+                !(mHtmlElements.get(indexOfTextElement+1)instanceof HTMLText));
+
+        if(isEndOfText && isNextElementClosingTag) {
+            //We have to add a new text element here
+            //Example: <i><b>Hello</b></i> if user adds text after "Hello" it will be inserted between the tags
+            //We don't want this so we have to create a new text element after the last closing tag.
+            HTMLElement tmpElement;
+            for (int iIndex = indexOfTextElement + 1; iIndex < mHtmlElements.size(); ++iIndex) {
+                tmpElement = mHtmlElements.get(iIndex);
+                //HTMLText elements are returning false for isOpenTag()
+                if ((tmpElement instanceof HTMLText) || tmpElement.isOpenTag()) {
+                    addElement(iIndex, new HTMLText(textToAdd));
+                    return;
+                }
+            }
+            //Current element was only followed by closing tags so append element to list
+            addElement(new HTMLText(textToAdd));
+            return;
+        }
+
+        insertIntoElement(indexOfTextElement, posInElement, textToAdd);
+    }
+
+    /**
+     * Insert typed text with a style. The first call puts the text into a new text element inside of the tags
+     * which are missing at the position. Following calls which continue at its end insert directly into this
+     * element, so typing in a style doesn't add tags or normalize the elements per keystroke.
+     * Styles which are already open at the position are kept, a different color is replaced.
+     * @param textToAdd New text
+     * @param start Position in the visible text
+     * @param styles Styles of the new text, empty for {@link #addText(String, int)}
+     * @param color Color for {@link SpanType#color}, ignored otherwise
+     */
+    public void addText(String textToAdd, int start, Set<SpanType> styles, String color){
+        if(styles.isEmpty()){
+            mTypingRun = null;
+            addText(textToAdd, start);
+            return;
+        }
+        if(textToAdd.length() == 0)
+            return;
+        if(isRecording)
+            mHistory.beginTyping(start, start, textToAdd);
+
+        if(!styles.contains(SpanType.color))
+            color = null;
+        boolean isSameStyle = mTypingStyles.equals(styles) && (color == null ? mTypingColor == null : color.equals(mTypingColor));
+        //Continue the run if nothing moved it
+        if(mTypingRun != null && isSameStyle && mTypingRunIndex < mHtmlElements.size() &&
+            mHtmlElements.get(mTypingRunIndex) == mTypingRun &&
+            getPositionIndex().getSizeBefore(mTypingRunIndex) + mTypingRun.getSize() == start){
+            insertIntoElement(mTypingRunIndex, mTypingRun.getSize(), textToAdd);
+            return;
+        }
+        mTypingStyles.clear();
+        mTypingStyles.addAll(styles);
+        mTypingColor = color;
+        startTypingRun(textToAdd, start);
+    }
+
+    /**
+     * Insert the text as new typing run, only the missing tags are added around it
+     */
+    private void startTypingRun(String textToAdd, int start){
+        int index = getElementIndexForPosition(start);
+        //No text at the position yet
+        if(index < 0){
+            addElement(new HTMLText(""));
+            index = mHtmlElements.size() - 1;
+        }
+        HTMLText element = (HTMLText) mHtmlElements.get(index);
+        int posInElement = getPosInHtmlTextElement(start, index);
+
+        //Tags which are open at the element, colors from the outermost to the innermost.
+        //Only the spans around the element are visited, tags without a partner have no effect.
+        TagDepthIndex depths = getTagDepthIndex();
+        int[] openTags = new int[SpanType.values().length];
+        for(SpanType type: SpanType.values())
+            openTags[type.ordinal()] = depths.getDepthBefore(type, index);
+        ArrayList<String> openColors = new ArrayList<>();
+        for(int iEle = depths.findSpanStart(SpanType.color, index); iEle < index; ++iEle){
+            int delta = depths.getDelta(SpanType.color, iEle);
+            if(delta > 0)
+                openColors.add(((HTMLColor) mHtmlElements.get(iEle)).getColor());
+            else if(delta < 0)
+                openColors.remove(openColors.size() - 1);
+        }
+
+        int insertAt = index + 1;
+        if(posInElement == element.getSize()){
+            //Like typed text the run is behind the tags which end here, unless they are part of the style
+            while(insertAt < mHtmlElements.size()){
+                HTMLElement tag = mHtmlElements.get(insertAt);
+                if(tag instanceof HTMLText || tag.isOpenTag() || isTypingStyle(tag, openColors))
+                    break;
+                if(depths.getDelta(tag.getType(), insertAt) < 0){
+                    --openTags[tag.getType().ordinal()];
+                    if(tag instanceof HTMLColor)
+                        openColors.remove(openColors.size() - 1);
+                }
+                ++insertAt;
+            }
+        }
+
+        //All tags are there already, the element itself is the run
+        boolean isColorMissing = mTypingColor != null && (openColors.isEmpty() || !mTypingColor.equals(openColors.get(openColors.size() - 1)));
+        boolean isTagMissing = isColorMissing;
+        for(SpanType type: mTypingStyles)
+            isTagMissing |= type != SpanType.color && openTags[type.ordinal()] == 0;
+        if(!isTagMissing && insertAt == index + 1){
+            insertIntoElement(index, posInElement, textToAdd);
+            mTypingRun = element;
+            mTypingRunIndex = index;
+            return;
+        }
+        if(posInElement < element.getSize()){
+            String tail = element.substring(posInElement, element.getSize());
+            deleteFromElement(index, posInElement, element.getSize());
+            addElement(insertAt, new HTMLText(tail));
+        }
+
+        ArrayList<HTMLElement> closingTags = new ArrayList<>();
+        if(isColorMissing){
+            //Nested colors would be removed as nested tags of the same type, so the open ones are closed first
+            for(int iColor = openColors.size() - 1; iColor >= 0; --iColor)
+                addElement(insertAt++, HTMLColor.CLOSE);
+            addElement(insertAt++, HTMLColor.get(true, mTypingColor));
+            closingTags.add(HTMLColor.CLOSE);
+            for(String openColor: openColors)
+                closingTags.add(HTMLColor.get(true, openColor));
+        }
+        for(SpanType type: mTypingStyles){
+            if(type == SpanType.color || openTags[type.ordinal()] > 0)
+                continue;
+            addElement(insertAt++, getNewElement(type, true, null));
+            closingTags.add(0, getNewElement(type, false, null));
+        }
+        mTypingRun = new HTMLText(textToAdd);
+        mTypingRunIndex = insertAt;
+        addElement(insertAt++, mTypingRun);
+        for(HTMLElement tag: closingTags)
+            addElement(insertAt++, tag);
+    }
+
+    /**
+     * @return True if the closing tag ends a style of the typing run, so the run has to stay in front of it
+     */
+    private boolean isTypingStyle(HTMLElement closingTag, List<String> openColors){
+        if(!mTypingStyles.contains(closingTag.getType()))
+            return false;
+        return !(closingTag instanceof HTMLColor) ||
+            (!openColors.isEmpty() && openColors.get(openColors.size() - 1).equals(mTypingColor));
+    }
+
+    /**
+     * Remove text between two positions of the visible text
+     * @param start First removed position
+     * @param end Position behind the last removed character
+     */
+    public void removeText(int start, int end){
+        if(start >= end)
+            return;
+        if(isRecording)
+            mHistory.beginTyping(start, end, "");
+        deleteText(start, end);
+    }
+
+    private void deleteText(int start, int end){
+        //Text deleted
+        int startIndex = getElementIndexForPosition(start);
+        int endIndex = getElementIndexForPosition(end);
+        start = getPosInHtmlTextElement(start, startIndex);
+        end = getPosInHtmlTextElement(end, endIndex);
+
+        //Text is in only one HTMLText element
+        if(startIndex == endIndex){
+            deleteFromElement(startIndex, start, end);
+        }
+        //Text spreads over multiple elements
+        else{
+            deleteFromElement(startIndex, start, mHtmlElements.get(startIndex).getSize());
+            deleteFromElement(endIndex, 0, end);
+            //The text between is removed completely, empty elements are dropped in the clean up routine
+            for(int iEle = startIndex + 1; iEle < endIndex; ++iEle){
+                if(mHtmlElements.get(iEle) instanceof HTMLText)
+                    deleteFromElement(iEle, 0, mHtmlElements.get(iEle).getSize());
+            }
+
+            //Deleted from the start of the text element, so the tags in front of it are in the range too,
+            //e.g. at the start of the document
+            int firstTag = startIndex + 1;
+            if(start == 0){
+                firstTag = startIndex;
+                while(firstTag > 0 && !(mHtmlElements.get(firstTag - 1) instanceof HTMLText))
+                    --firstTag;
+            }
+            removeElementsBetween(firstTag, endIndex-1);
+        }
+    }
+
+    /**
+     * Replace the text between start and end with pasted HTML, e.g. text copied from another document.
+     * Only the fragment is parsed, its elements are inserted at the position. Closing tags which close nothing
+     * in the fragment are dropped and tags which are still open at its end are closed, so the text behind it
+     * keeps its style. The paste can be undone in one step.
+     * @param html Fragment which only contains the supported tags
+     * @param start Start pos in text
+     * @param end End of the replaced text, start to only insert
+     * @return True if the style also changed outside of the pasted text because a nested tag was removed
+     */
+    public boolean insertHtml(String html, int start, int end){
+        HTMLDocument fragment = new HTMLDocument();
+        fragment.setText(html);
+        if(fragment.isEmpty() && start >= end)
+            return false;
+        long startTime = startMetric(Metric.textChanged);
+        if(isRecording)
+            mHistory.beginAction();
+        if(start < end)
+            deleteText(start, end);
+
+        int index = splitAtPosition(start);
+        ArrayList<HTMLElement> elements = balanceTags(fragment.mHtmlElements, index);
+        record(EditHistory.Change.replace(index, Collections.<HTMLElement>emptyList(), elements));
+        replaceElements(index, Collections.<HTMLElement>emptyList(), elements);
+        boolean changedOutside = CleanUp();
+        finishMetric(Metric.textChanged, startTime, fragment.length());
+        return changedOutside;
+    }
+
+    /**
+     * Find a pattern in the visible text. Matches may cross tags, their positions are positions of the visible
+     * text like the ones of {@link #addSpan(int, int, SpanType, String)}.
+     * @return Matches ordered by start
+     */
+    public List<Match> find(Pattern pattern){
+        ArrayList<Match> matches = new ArrayList<>();
+        Matcher matcher = pattern.matcher(getVisibleText());
+        while(matcher.find())
+            matches.add(new Match(matcher.start(), matcher.end(), matcher.group()));
+        return matches;
+    }
+
+    /**
+     * Replace all matches of a pattern in the visible text with one change, which can be undone in one step.
+     * A replacement gets the style of the first character it replaces, the tags around the matches stay.
+     * @param replacement Replacement like the one of {@link Matcher#replaceAll(String)}, "$1" is the first group
+     * @return The replaced ranges of the old text ordered by start, their text is the replacement
+     */
+    public List<Match> replaceAll(Pattern pattern, String replacement){
+        ArrayList<Match> matches = new ArrayList<>();
+        Matcher matcher = pattern.matcher(getVisibleText());
+        //appendReplacement writes the text since the last match and the replacement with its groups
+        StringBuffer replaced = new StringBuffer();
+        int appendPos = 0;
+        while(matcher.find()){
+            replaced.setLength(0);
+            matcher.appendReplacement(replaced, replacement);
+            matches.add(new Match(matcher.start(), matcher.end(), replaced.substring(matcher.start() - appendPos)));
+            appendPos = matcher.end();
+        }
+        if(matches.isEmpty())
+            return matches;
+
+        long startTime = startMetric(Metric.textChanged);
+        if(isRecording)
+            mHistory.beginAction();
+        //From the back, so the positions of the matches in front stay valid
+        for(int iMatch = matches.size() - 1; iMatch >= 0; --iMatch){
+            Match match = matches.get(iMatch);
+            replaceText(match.getStart(), match.getEnd(), match.getText());
+        }
+        CleanUp();
+        finishMetric(Metric.textChanged, startTime, matches.size());
+        return matches;
+    }
+
+    /**
+     * Replace visible text. The new text is inserted into the element of the first replaced character, so it
+     * has its style.
+     */
+    private void replaceText(int start, int end, String text){
+        if(text.length() > 0){
+            //For an empty range the element which ends at start
+            int index = getElementIndexForPosition(start < end ? start + 1 : start);
+            if(index < 0)
+                addElement(new HTMLText(text));
+            else
+                insertIntoElement(index, getPosInHtmlTextElement(start, index), text);
+        }
+        if(start < end)
+            deleteText(start + text.length(), end + text.length());
+    }
+
+    /**
+     * Split the text element at a position of the visible text. Like typed text the position is behind the
+     * closing tags which end there.
+     * @return Index for new elements at the position
+     */
+    private int splitAtPosition(int pos){
+        int index = getElementIndexForPosition(pos);
+        if(index < 0)
+            return mHtmlElements.size();
+        HTMLText element = (HTMLText) mHtmlElements.get(index);
+        int posInElement = getPosInHtmlTextElement(pos, index);
+        int insertAt = index + 1;
+        if(posInElement < element.getSize()){
+            String tail = element.substring(posInElement, element.getSize());
+            deleteFromElement(index, posInElement, element.getSize());
+            addElement(insertAt, new HTMLText(tail));
+            return insertAt;
+        }
+        while(insertAt < mHtmlElements.size()){
+            HTMLElement tag = mHtmlElements.get(insertAt);
+            if(tag instanceof HTMLText || tag.isOpenTag())
+                break;
+            ++insertAt;
+        }
+        return insertAt;
+    }
+
+    /**
+     * Drop the closing tags which close nothing and close the tags which are still open at the end.
+     * Bold, italic and underline tags are dropped if the type is already open at index, the text has the
+     * style there anyway and no nested tag has to be removed afterwards.
+     * @param elements Parsed fragment
+     * @param index Index where the fragment is inserted
+     */
+    private ArrayList<HTMLElement> balanceTags(List<HTMLElement> elements, int index){
+        TagDepthIndex depths = getTagDepthIndex();
+        SpanType[] types = SpanType.values();
+        boolean[] isOpenAround = new boolean[types.length];
+        for(SpanType type: types)
+            isOpenAround[type.ordinal()] = type != SpanType.color && depths.getDepthBefore(type, index) > 0;
+
+        ArrayList<HTMLElement> balanced = new ArrayList<>(elements.size());
+        int[] openTags = new int[types.length];
+        //Open tags in their order, to close them from the innermost
+        ArrayList<HTMLElement> openStack = new ArrayList<>();
+        for(HTMLElement element: elements){
+            if(element instanceof HTMLText){
+                balanced.add(element);
+                continue;
+            }
+            int iType = element.getType().ordinal();
+            if(isOpenAround[iType])
+                continue;
+            if(element.isOpenTag()){
+                ++openTags[iType];
+                openStack.add(element);
+            }
+            else if(openTags[iType] > 0){
+                --openTags[iType];
+                for(int iOpen = openStack.size() - 1; iOpen >= 0; --iOpen){
+                    if(openStack.get(iOpen).getType() == element.getType()){
+                        openStack.remove(iOpen);
+                        break;
+                    }
+                }
+            }
+            else
+                continue;
+            balanced.add(element);
+        }
+        for(int iOpen = openStack.size() - 1; iOpen >= 0; --iOpen)
+            balanced.add(getNewElement(openStack.get(iOpen).getType(), false, null));
+        return balanced;
+    }
+
+    /**
+     * Remove the tags between the elements whose text was deleted. A tag whose partner is outside of the range
+     * is kept, so the text around the range keeps its style. Pairs inside of the range and tags without a
+     * partner, which have no effect, are removed. The emptied text elements are dropped in the clean up routine.
+     * @param startIndex First html candidate to be removed
+     * @param endIndex  Last html candidate to be removed
+     */
+    private void removeElementsBetween(int startIndex, int endIndex){
+        if(startIndex > endIndex)
+            return;
+        TagDepthIndex depths = getTagDepthIndex();
+        boolean[] isRemoved = new boolean[endIndex - startIndex + 1];
+        //Indices of the open tags in the range which are not closed yet, per type
+        ArrayList<ArrayList<Integer>> openTags = new ArrayList<>();
+        for(int iType = 0; iType < SpanType.values().length; ++iType)
+            openTags.add(new ArrayList<Integer>());
+
+        for(int iEle = startIndex; iEle <= endIndex; ++iEle){
+            HTMLElement element = mHtmlElements.get(iEle);
+            if(element instanceof HTMLText)
+                continue;
+            int delta = depths.getDelta(element.getType(), iEle);
+            ArrayList<Integer> open = openTags.get(element.getType().ordinal());
+            if(delta > 0)
+                open.add(iEle);
+            //Its open tag is in the range too, otherwise it closes a tag in front of the range
+            else if(delta < 0 && !open.isEmpty()){
+                isRemoved[open.remove(open.size() - 1) - startIndex] = true;
+                isRemoved[iEle - startIndex] = true;
+            }
+            else if(delta == 0)
+                isRemoved[iEle - startIndex] = true;
+        }
+        for(int iEle = endIndex; iEle >= startIndex; --iEle){
+            if(isRemoved[iEle - startIndex])
+                removeElement(iEle);
+        }
+    }
+
+    /**
+     * Split the text into HTMLText and tag elements in a single forward pass.
+     * Every tag is surrounded by HTMLText elements, even if they are empty.
+     * @param text Text with supported tags
+     */
+    private void parseText(String text){
+        Matcher fontMatcher = FONT_TAG.matcher(text);
+        int textStart = 0;
+        int iChar = text.indexOf('<');
+
+        while(iChar >= 0){
+            int tagEnd = findEndOfSupportedTag(text, iChar, fontMatcher);
+            if(tagEnd < 0){
+                //No supported tag, keep '<' as text
+                iChar = text.indexOf('<', iChar + 1);
+                continue;
+            }
+            addElement(new HTMLText(text.substring(textStart, iChar)));
+            addElement(getElementForSupportedTag(text.substring(iChar, tagEnd)));
+            textStart = tagEnd;
+            iChar = text.indexOf('<', tagEnd);
+        }
+        addElement(new HTMLText(text.substring(textStart, text.length())));
+    }
+
+    /**
+     * @param text Text to look in
+     * @param pos Position of a '<'
+     * @param fontMatcher Matcher for the opening font tag on the same text
+     * @return Position after the supported tag starting at pos or -1 if there is none
+     */
+    static int findEndOfSupportedTag(String text, int pos, Matcher fontMatcher){
+        for(String tag: SUPPORTED_TAGS){
+            if(text.startsWith(tag, pos))
+                return pos + tag.length();
+        }
+        fontMatcher.region(pos, text.length());
+        if(fontMatcher.lookingAt())
+            return fontMatcher.end();
+        return -1;
+    }
+
+    /**
+     * @return Text with all added HTML tags
+     */
+    public String getPlainText(){
+        long startTime = startMetric(Metric.getPlainText);
+        CleanUp();
+        String html = toHtml();
+        finishMetric(Metric.getPlainText, startTime, -1);
+        return html;
+    }
+
+    /**
+     * Write the same text as {@link #getPlainText()} to out without building one String of the whole text.
+     * Use this to save large texts directly to a file.
+     * @param out Destination, e.g. a {@link Writer} or a reused {@link StringBuilder}
+     */
+    public void writePlainText(Appendable out) throws IOException{
+        long startTime = startMetric(Metric.getPlainText);
+        CleanUp();
+        writeElements(out);
+        finishMetric(Metric.getPlainText, startTime, -1);
+    }
+
+    /**
+     * Write all elements, line breaks are written as <br/> in the same pass
+     */
+    private void writeElements(Appendable out) throws IOException{
+        for(HTMLElement ele: mHtmlElements){
+            if(ele instanceof HTMLText)
+                ((HTMLText) ele).writeTo(out);
+            else
+                out.append(ele.getText());
+        }
+    }
+
+    /**
+     * @return All elements as HTML without normalizing them first
+     */
+    public String toHtml(){
+        mHtmlBuilder.setLength(0);
+        try {
+            writeElements(mHtmlBuilder);
+        } catch (IOException e) {
+            //Never thrown by a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        String html = mHtmlBuilder.toString();
+        if(mHtmlBuilder.capacity() > MAX_KEPT_BUFFER_SIZE){
+            mHtmlBuilder.setLength(0);
+            mHtmlBuilder.trimToSize();
+        }
+        return html;
+    }
+
+    /**
+     * Drop the text and the buffers which grew larger than usual with it, e.g. when the document is reused
+     * for many texts. The limits of the history are kept.
+     */
+    void clear(){
+        setText((String) null);
+        mPositionIndex.trim(MAX_KEPT_BUFFER_SIZE);
+        mTagDepthIndex.trim(MAX_KEPT_BUFFER_SIZE);
+    }
+
+    private HTMLElement getElementForSupportedTag(String tag){
+        if(tag.equals("<b>"))
+            return HTMLBold.OPEN;
+        if(tag.equals("</b>"))
+            return HTMLBold.CLOSE;
+        if(tag.equals("<i>"))
+            return HTMLItalic.OPEN;
+        if(tag.equals("</i>"))
+            return HTMLItalic.CLOSE;
+        if(tag.equals("<u>"))
+            return HTMLUnderline.OPEN;
+        if(tag.equals("</u>"))
+            return HTMLUnderline.CLOSE;
+        if(tag.equals("</font>")){
+            return HTMLColor.CLOSE;
+        }
+        return HTMLColor.get(true, tag.substring(FONT_COLOR_START, FONT_COLOR_START + 6));
+    }
+
+    /**
+     * @param posInText Position in the visible text
+     * @param elementIndex Index of the HTMLText element got with {@link #getElementIndexForPosition(int)}
+     * @return Position inside of the HTMLText element
+     */
+    private int getPosInHtmlTextElement(int posInText, int elementIndex){
+        return posInText - getPositionIndex().getSizeBefore(elementIndex);
+    }
+
+    /**
+     * @param posInText Position in the visible text
+     * @return Index of the first HTMLText element which contains the position or -1 if there is none
+     */
+    private int getElementIndexForPosition(int posInText){
+        //First element which reaches the position, skip tags which are in front of the text
+        for(int iEle = getPositionIndex().findIndex(posInText); iEle < mHtmlElements.size(); ++iEle){
+            if(mHtmlElements.get(iEle) instanceof HTMLText)
+                return iEle;
+        }
+        return -1;
+    }
+
+    private TextPositionIndex getPositionIndex(){
+        if(!isPositionIndexValid){
+            mPositionIndex.rebuild(mHtmlElements);
+            isPositionIndexValid = true;
+            ++mPositionIndexBuilds;
+        }
+        return mPositionIndex;
+    }
+
+    /**
+     * Changes of the text only don't move tags, so this is rebuilt together with the position index
+     */
+    private TagDepthIndex getTagDepthIndex(){
+        getPositionIndex();
+        if(mTagDepthIndexBuild != mPositionIndexBuilds){
+            mTagDepthIndex.rebuild(mHtmlElements);
+            mTagDepthIndexBuild = mPositionIndexBuilds;
+        }
+        return mTagDepthIndex;
+    }
+
+    private void addElement(HTMLElement element){
+        addElement(mHtmlElements.size(), element);
+    }
+
+    private void addElement(int index, HTMLElement element){
+        record(EditHistory.Change.add(index, element));
+        mHtmlElements.add(index, element);
+        isPositionIndexValid = false;
+        if(index < mDirtyEnd)
+            ++mDirtyEnd;
+        markDirty(index, index + 1);
+        if(!(element instanceof HTMLText))
+            mayContainNestedTags = true;
+    }
+
+    private void removeElement(int index){
+        record(EditHistory.Change.remove(index, mHtmlElements.remove(index)));
+        isPositionIndexValid = false;
+        if(index < mDirtyEnd)
+            --mDirtyEnd;
+        //The neighbours of the removed element are now next to each other
+        markDirty(index, index);
+    }
+
+    private void setElement(int index, HTMLElement element){
+        mHtmlElements.set(index, element);
+        isPositionIndexValid = false;
+        markDirty(index, index + 1);
+        if(!(element instanceof HTMLText))
+            mayContainNestedTags = true;
+    }
+
+    private void replaceElements(int index, List<HTMLElement> oldElements, List<HTMLElement> newElements){
+        mHtmlElements.subList(index, index + oldElements.size()).clear();
+        mHtmlElements.addAll(index, newElements);
+        isPositionIndexValid = false;
+        if(index < mDirtyEnd)
+            mDirtyEnd = Math.max(index, mDirtyEnd + newElements.size() - oldElements.size());
+        markDirty(index, index + newElements.size());
+        mayContainNestedTags = true;
+    }
+
+    private void record(EditHistory.Change change){
+        if(isRecording)
+            mHistory.record(change);
+    }
+
+    private void markDirty(int start, int end){
+        mDirtyStart = Math.min(mDirtyStart, start);
+        mDirtyEnd = Math.max(mDirtyEnd, end);
+    }
+
+    private void insertIntoElement(int index, int pos, String text){
+        record(EditHistory.Change.insertText(index, pos, text));
+        ((HTMLText) mHtmlElements.get(index)).insert(pos, text);
+        markDirty(index, index + 1);
+        //Only the size of this element changed, keep the index up to date
+        if(isPositionIndexValid)
+            mPositionIndex.add(index, text.length());
+    }
+
+    private void deleteFromElement(int index, int start, int end){
+        if(start >= end)
+            return;
+        HTMLText element = (HTMLText) mHtmlElements.get(index);
+        if(isRecording)
+            record(EditHistory.Change.deleteText(index, start, element.substring(start, end)));
+        element.delete(start, end);
+        markDirty(index, index + 1);
+        if(isPositionIndexValid)
+            mPositionIndex.add(index, start - end);
+    }
+
+    /**
+     * Normalize the elements which changed since the last call.
+     * Everything outside of the dirty range is already normalized, so only the neighbourhood of the changes
+     * is visited. The list is compacted in place: elements in front of iWrite are normalized and each element
+     * which is read is merged with the last normalized one if possible.
+     * The result differs from the recursive clean up of the original parser where it changed the style of
+     * text: a nested tag is removed together with its closing tag. It also drops a tag which is closed right
+     * away, which the original one kept.
+     * @return True if a nested tag was removed which changes the style outside of the dirty range
+     */
+    private boolean CleanUp(){
+        long startTime = startMetric(Metric.cleanUp);
+        int iRead = Math.max(0, mDirtyStart - 1);
+        int firstRead = iRead;
+        int iWrite = iRead;
+        int dirtyEnd = Math.min(mDirtyEnd, mHtmlElements.size());
+        boolean changed = false;
+
+        while(iRead < mHtmlElements.size()){
+            HTMLElement second = mHtmlElements.get(iRead++);
+            boolean merged = false;
+
+            while(iWrite > 0){
+                HTMLElement first = mHtmlElements.get(iWrite - 1);
+                //Merge two text elements
+                if(first instanceof HTMLText && second instanceof HTMLText){
+                    String secondText = second.getText();
+                    record(EditHistory.Change.insertText(iWrite - 1, first.getSize(), secondText));
+                    ((HTMLText) first).insert(first.getSize(), secondText);
+                    second = null;
+                }
+                //Try to merge tags when a closing tag is directly followed by an opening tag of the same type
+                else if(isClosedAndReopened(iWrite - 1, second)){
+                    --iWrite;
+                    second = null;
+                }
+                //A tag which is closed right away formats nothing, e.g. after its text was deleted
+                else if(isOpenedAndClosed(first, second)){
+                    --iWrite;
+                    second = null;
+                }
+                //Remove empty text elements
+                else if(first instanceof HTMLText && first.getSize() == 0){
+                    --iWrite;
+                    merged = true;
+                    continue;
+                }
+                else{
+                    break;
+                }
+                merged = true;
+                break;
+            }
+
+            if(second != null){
+                HTMLElement old = mHtmlElements.set(iWrite, second);
+                if(old != second)
+                    record(EditHistory.Change.set(iWrite, old, second));
+                ++iWrite;
+            }
+            changed |= merged;
+            //Behind the dirty range the elements are untouched and already normalized
+            if(!merged && iRead > dirtyEnd)
+                break;
+        }
+
+        if(iWrite != iRead){
+            List<HTMLElement> removed = mHtmlElements.subList(iWrite, iRead);
+            if(isRecording)
+                record(EditHistory.Change.replace(iWrite, new ArrayList<>(removed), Collections.<HTMLElement>emptyList()));
+            removed.clear();
+        }
+        if(changed)
+            isPositionIndexValid = false;
+        mDirtyStart = Integer.MAX_VALUE;
+        mDirtyEnd = 0;
+
+        boolean changedOutside = CleanUpNestedSameTags();
+        finishMetric(Metric.cleanUp, startTime, iRead - firstRead);
+        return changedOutside;
+    }
+
+    /**
+     * @param iFirst Index of the first element, the elements in front of it are normalized
+     */
+    private boolean isClosedAndReopened(int iFirst, HTMLElement second){
+        HTMLElement first = mHtmlElements.get(iFirst);
+        //Text has no type
+        if(first.isOpenTag() || !second.isOpenTag() || first.getType() != second.getType())
+            return false;
+        if(first.getType() != SpanType.color)
+            return true;
+        //The closing tag has no color, it goes on only if its open tag has the same one
+        HTMLColor open = findOpenColor(iFirst);
+        return open == second || open != null && open.getColor().equals(((HTMLColor) second).getColor());
+    }
+
+    /**
+     * @param iClose Index of a closing color tag
+     * @return Open color tag which is closed there, null if it has no partner
+     */
+    private HTMLColor findOpenColor(int iClose){
+        int depth = 0;
+        for(int iEle = iClose - 1; iEle >= 0; --iEle){
+            HTMLElement element = mHtmlElements.get(iEle);
+            if(element.getType() != SpanType.color)
+                continue;
+            if(!element.isOpenTag())
+                ++depth;
+            else if(depth-- == 0)
+                return (HTMLColor) element;
+        }
+        return null;
+    }
+
+    private boolean isOpenedAndClosed(HTMLElement first, HTMLElement second){
+        //Text is never an open tag
+        return first.isOpenTag() && !second.isOpenTag() && !(second instanceof HTMLText) &&
+            first.getType() == second.getType();
+    }
+
+    /**
+     * Remove nested tags of the same type: <a> <a> </a> </a> -> <a> </a>
+     * @return True if a tag was removed
+     */
+    private boolean CleanUpNestedSameTags(){
+        //Nothing was added since the last run without nested tags
+        if(!mayContainNestedTags)
+            return false;
+
+        ArrayList<HTMLElement> openedTags = new ArrayList<>();
+        HTMLElement tag = null;
+        boolean foundNestedTag = false;
+        boolean containsNestedTags = true;
+        while(containsNestedTags) {
+            //Remove nested tags from same type
+            for (int iEle = 0; iEle < mHtmlElements.size() - 1; ++iEle) {
+                //No nested tag found until now
+                if (!foundNestedTag) {
+                    tag = mHtmlElements.get(iEle);
+                    //Text is irrelevant, skip it
+                    if(tag instanceof HTMLText)
+                        continue;
+                    if (tag.isOpenTag()) {
+                        //Found a nested tag from same type
+                        if (containsTagFromType(openedTags, tag)) {
+                            foundNestedTag = true;
+                        } else {
+                            openedTags.add(tag);
+                        }
+                    } else {
+                        //Remove the corresponding opened tag from the list
+                        for (int iOpen = 0; iOpen < openedTags.size(); ++iOpen) {
+                            if (openedTags.get(iOpen).getType() == tag.getType()) {
+                                openedTags.remove(iOpen);
+                                break;
+                            }
+                        }
+                    }
+                } else {
+                    //It does not matter if closeTag is the corresponding one tag.
+                    //If there are multiple nested tags all of them will be deleted
+                    //<a> <a> <a> </a> </a> </a> 1.Step
+                    //<a>     <a>      </a> </a> 2.Step
+                    //<a>                   </a> 3.Step
+                    HTMLElement closeTag = mHtmlElements.get(--iEle); //Decrement because nested tag was found in previous round
+                    if (tag.getType() == closeTag.getType()) {
+                        removeNestedTag(iEle);
+                        //Go back to the while-loop and start again
+                        return true;
+                    }
+                }
+            }
+            //If we reach this point no nested tags were found
+            containsNestedTags = false;
+        }
+
+        //The last element is never checked, if it is an open tag it can become nested once elements are appended
+        HTMLElement last = mHtmlElements.isEmpty() ? null : mHtmlElements.get(mHtmlElements.size() - 1);
+        if(!foundNestedTag && (last == null || !last.isOpenTag()))
+            mayContainNestedTags = false;
+        return false;
+    }
+
+    /**
+     * Remove a nested open tag without changing the style of any text. Its closing tag is removed too, otherwise
+     * it would close the outer tag too early. A nested color has another color than the outer one, so the
+     * colors around it are split into runs instead.
+     */
+    private void removeNestedTag(int index){
+        SpanType type = mHtmlElements.get(index).getType();
+        TagDepthIndex depths = getTagDepthIndex();
+        if(depths.getDelta(type, index) != 0 && depths.getDepthBefore(type, index) == 0){
+            //Only nested into a tag which is never closed, that one has no effect and is removed
+            while(!mHtmlElements.get(index).isOpenTag() || mHtmlElements.get(index).getType() != type ||
+                depths.getDelta(type, index) != 0)
+                --index;
+        }
+
+        if(depths.getDelta(type, index) == 0)
+            removeElement(index);
+        else if(type == SpanType.color)
+            restyleElements(depths.findSpanStart(type, index), depths.findSpanEnd(type, index), 0, 0, type, null);
+        else{
+            removeElement(depths.findClosingTag(type, index));
+            removeElement(index);
+        }
+    }
+
+    private boolean containsTagFromType(ArrayList<HTMLElement> elements, HTMLElement tag){
+        for(HTMLElement element: elements){
+            if(element.getType() == tag.getType()){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a HTML tag around the text between start and end
+     * @param start Pos for open tag in text
+     * @param end Pos for close tag in text
+     * @param type Span type
+     * @param color If type is no color span => ignored
+     * @return True if the style also changed outside of [start, end) because a nested tag was removed
+     * @throws IllegalArgumentException If a color span has no color
+     */
+    public boolean addSpan(int start, int end, SpanType type, String color){
+        checkColor(type, color);
+        //Wouldn't make sense to insert this empty tag
+        if(start == end)
+            return false;
+        long startTime = startMetric(Metric.addSpan);
+        if(isRecording)
+            mHistory.beginAction();
+        int startIndex = getElementIndexForPosition(start);
+        int endIndex = getElementIndexForPosition(end);
+        HTMLText startEle = (HTMLText) mHtmlElements.get(startIndex);
+        HTMLText endEle = (HTMLText) mHtmlElements.get(endIndex);
+
+        //Nested colors are never removed, so the old colors are replaced instead of wrapped
+        if(type == SpanType.color){
+            restyle(start, end, type, HTMLColor.get(true, color));
+        }
+        //Simple case we have to add the span in only one tag
+        else if(startIndex == endIndex){
+            start = getPosInHtmlTextElement(start, startIndex);
+            end = getPosInHtmlTextElement(end, endIndex);
+
+            addSpanToElement(startEle, startIndex, type, color, start, end);
+        }
+        else{
+            //We insert the elements from the back to the front to don't get confused with the indices.
+            //If we would start at the front we have to keep track how many elements we add to the list.
+            int posEndEle = getPosInHtmlTextElement(end, endIndex);
+            int posStartEle = getPosInHtmlTextElement(start, startIndex);
+            int sizeBefore = mHtmlElements.size();
+
+            //Wrap each text element between in the tag.
+            //If the elements appear right after each other the tags will be merged in the clean up routine.
+            for(int iEleBetween = endIndex - 1; iEleBetween > startIndex; --iEleBetween){
+                HTMLElement elementBetween = mHtmlElements.get(iEleBetween);
+                if(elementBetween instanceof HTMLText){
+                    addSpanToElement((HTMLText) elementBetween, iEleBetween, type, color, 0, elementBetween.getSize());
+                }
+            }
+
+            addSpanToElement(endEle, endIndex + mHtmlElements.size() - sizeBefore, type, color, 0, posEndEle);
+            addSpanToElement(startEle, startIndex, type, color, posStartEle, startEle.getSize());
+        }
+        boolean changedOutside = CleanUp();
+        finishMetric(Metric.addSpan, startTime, 1);
+        return changedOutside;
+    }
+
+    /**
+     * Remove the formatting of one type from the text between start and end. Spans which reach out of the
+     * range are trimmed or split, overlapping colors around the range are collapsed.
+     * @param start Start pos in text
+     * @param end End pos in text
+     * @param type Span type
+     * @return True if the style also changed outside of [start, end) because a nested tag was removed
+     */
+    public boolean removeSpan(int start, int end, SpanType type){
+        end = Math.min(end, length());
+        if(start >= end)
+            return false;
+        long startTime = startMetric(Metric.addSpan);
+        if(isRecording)
+            mHistory.beginAction();
+        restyle(start, end, type, null);
+        boolean changedOutside = CleanUp();
+        finishMetric(Metric.addSpan, startTime, 1);
+        return changedOutside;
+    }
+
+    /**
+     * Remove the span if the whole text between start and end already has it, otherwise add it
+     * @param color If type is no color span => ignored. A text in another color gets this color
+     * @return True if the style also changed outside of [start, end) because a nested tag was removed
+     * @throws IllegalArgumentException If a color span has no color
+     */
+    public boolean toggleSpan(int start, int end, SpanType type, String color){
+        checkColor(type, color);
+        //Wouldn't make sense to insert this empty tag
+        if(start >= end)
+            return false;
+        int covered = start;
+        for(Span span: getSpansAt(start, end)){
+            if(span.getType() == type && span.getStart() <= covered && span.getEnd() > covered &&
+                (type != SpanType.color || span.getColor().equals(color)))
+                covered = span.getEnd();
+        }
+        if(covered >= end)
+            return removeSpan(start, end, type);
+        return addSpan(start, end, type, color);
+    }
+
+    /**
+     * @throws IllegalArgumentException If a span of type color has no color
+     */
+    static void checkColor(SpanType type, String color){
+        if(type == SpanType.color && color == null)
+            throw new IllegalArgumentException("A color span needs a color");
+    }
+
+    /**
+     * Styles of the text between start and end, clipped to the range. Unlike {@link #getSpans(int, int, SpanType)}
+     * spans of the same type never overlap: for nested colors the inner one is used.
+     * Only the elements of the range and of the spans which contain it are visited.
+     * @return Spans of all types ordered by start
+     */
+    public List<Span> getSpansAt(int start, int end){
+        ArrayList<Span> spans = new ArrayList<>();
+        end = Math.min(end, length());
+        if(start >= end)
+            return spans;
+        int startIndex = getElementIndexForPosition(start);
+        int endIndex = getElementIndexForPosition(end);
+        TagDepthIndex depths = getTagDepthIndex();
+        SpanType[] types = SpanType.values();
+        int first = startIndex;
+        for(SpanType type: types)
+            first = Math.min(first, depths.findSpanStart(type, startIndex));
+
+        //Per type the open tags and the run of text which has the same style
+        ArrayList<ArrayList<HTMLElement>> openTags = new ArrayList<>(types.length);
+        HTMLElement[] runTags = new HTMLElement[types.length];
+        int[] runStarts = new int[types.length];
+        for(int iType = 0; iType < types.length; ++iType)
+            openTags.add(new ArrayList<HTMLElement>());
+        int pos = getPositionIndex().getSizeBefore(first);
+
+        for(int iEle = first; iEle <= endIndex; ++iEle){
+            HTMLElement element = mHtmlElements.get(iEle);
+            if(!(element instanceof HTMLText)){
+                int delta = depths.getDelta(element.getType(), iEle);
+                ArrayList<HTMLElement> open = openTags.get(element.getType().ordinal());
+                if(delta > 0)
+                    open.add(element);
+                //Spans of other types may have been opened in front of first
+                else if(delta < 0 && !open.isEmpty())
+                    open.remove(open.size() - 1);
+                continue;
+            }
+            int pieceStart = Math.max(start, pos);
+            pos += element.getSize();
+            int pieceEnd = Math.min(end, pos);
+            if(pieceStart >= pieceEnd)
+                continue;
+            for(int iType = 0; iType < types.length; ++iType){
+                ArrayList<HTMLElement> open = openTags.get(iType);
+                HTMLElement tag = open.isEmpty() ? null : open.get(open.size() - 1);
+                if(tag == runTags[iType])
+                    continue;
+                addRun(spans, types[iType], runTags[iType], runStarts[iType], pieceStart);
+                runTags[iType] = tag;
+                runStarts[iType] = pieceStart;
+            }
+        }
+        for(int iType = 0; iType < types.length; ++iType)
+            addRun(spans, types[iType], runTags[iType], runStarts[iType], end);
+
+        Collections.sort(spans, new Comparator<Span>() {
+            @Override
+            public int compare(Span first, Span second) {
+                return first.getStart() - second.getStart();
+            }
+        });
+        return spans;
+    }
+
+    private void addRun(List<Span> spans, SpanType type, HTMLElement tag, int start, int end){
+        if(tag != null && start < end)
+            spans.add(new Span(start, end, type, tag instanceof HTMLColor ? ((HTMLColor) tag).getColor() : null));
+    }
+
+    /**
+     * Replace the tags of one type around [start, end) with runs, so that the range is formatted with tag or
+     * not at all if tag is null. Overlapping spans of the type are collapsed, each text piece keeps the style
+     * of its innermost tag. Only the elements of the spans which reach into the range are replaced.
+     * @param tag Open tag for the range or null to remove the type
+     */
+    private void restyle(int start, int end, SpanType type, HTMLElement tag){
+        TagDepthIndex depths = getTagDepthIndex();
+        int first = depths.findSpanStart(type, getElementIndexForPosition(start));
+        int last = depths.findSpanEnd(type, getElementIndexForPosition(end));
+        restyleElements(first, last, start, end, type, tag);
+    }
+
+    /**
+     * Like {@link #restyle(int, int, SpanType, HTMLElement)} for the elements in [first, last), which have to
+     * contain whole spans of the type. With start == end only the overlapping spans are collapsed.
+     */
+    private void restyleElements(int first, int last, int start, int end, SpanType type, HTMLElement tag){
+        TagDepthIndex depths = getTagDepthIndex();
+        int pos = getPositionIndex().getSizeBefore(first);
+        HTMLElement closeTag = getNewElement(type, false, null);
+
+        ArrayList<HTMLElement> added = new ArrayList<>(last - first + 4);
+        //Other tags behind the last text, a changed style is closed in front of them and opened behind them
+        ArrayList<HTMLElement> pending = new ArrayList<>();
+        ArrayList<HTMLElement> openTags = new ArrayList<>();
+        HTMLElement written = null;
+        for(int iEle = first; iEle < last; ++iEle){
+            HTMLElement element = mHtmlElements.get(iEle);
+            if(!(element instanceof HTMLText)){
+                int delta = element.getType() == type ? depths.getDelta(type, iEle) : 0;
+                if(element.getType() != type)
+                    pending.add(element);
+                else if(delta > 0)
+                    openTags.add(element);
+                else if(delta < 0)
+                    openTags.remove(openTags.size() - 1);
+                //Tags without a partner have no effect and are dropped
+                continue;
+            }
+
+            int size = element.getSize();
+            HTMLElement outerStyle = openTags.isEmpty() ? null : openTags.get(openTags.size() - 1);
+            for(int pieceStart = 0; pieceStart < size;){
+                //The parts in front of, in and behind the range, split only where the style changes
+                int pieceEnd = pieceStart;
+                HTMLElement style = null;
+                while(pieceEnd < size){
+                    int partEnd = size;
+                    HTMLElement partStyle = outerStyle;
+                    if(pos + pieceEnd < start){
+                        partEnd = Math.min(size, start - pos);
+                    }
+                    else if(pos + pieceEnd < end){
+                        partEnd = Math.min(size, end - pos);
+                        partStyle = tag;
+                    }
+                    if(pieceEnd > pieceStart && partStyle != style)
+                        break;
+                    style = partStyle;
+                    pieceEnd = partEnd;
+                }
+
+                if(style != written && written != null)
+                    added.add(closeTag);
+                added.addAll(pending);
+                pending.clear();
+                if(style != written && style != null)
+                    added.add(style);
+                written = style;
+                added.add(pieceStart == 0 && pieceEnd == size ? element :
+                    new HTMLText(((HTMLText) element).substring(pieceStart, pieceEnd)));
+                pieceStart = pieceEnd;
+            }
+            pos += size;
+        }
+        if(written != null)
+            added.add(closeTag);
+        added.addAll(pending);
+
+        List<HTMLElement> removed = mHtmlElements.subList(first, last);
+        if(added.equals(removed))
+            return;
+        removed = new ArrayList<>(removed);
+        record(EditHistory.Change.replace(first, removed, added));
+        replaceElements(first, removed, added);
+    }
+
+    /**
+     * Add many spans at once. The elements are split in one pass over the list and normalized once, which is
+     * much faster than calling {@link #addSpan(int, int, SpanType, String)} for each span.
+     * Each text piece is wrapped in the spans which cover it, later spans are nested inside of earlier ones.
+     * @param spans Spans to add in the order they would be added one by one
+     * @return True if the style also changed outside of the spans because a nested tag was removed
+     * @throws IllegalArgumentException If a color span has no color, then no span is added
+     */
+    public boolean addSpans(Collection<Span> spans){
+        final ArrayList<Span> ops = new ArrayList<>();
+        for(Span span: spans){
+            checkColor(span.getType(), span.getColor());
+            //Wouldn't make sense to insert this empty tag
+            if(span.getStart() < span.getEnd())
+                ops.add(span);
+        }
+        if(ops.isEmpty() || mHtmlElements.isEmpty())
+            return false;
+        long startTime = startMetric(Metric.addSpan);
+        if(isRecording)
+            mHistory.beginAction();
+
+        //Indices of the spans ordered by start
+        Integer[] byStart = new Integer[ops.size()];
+        for(int iOp = 0; iOp < byStart.length; ++iOp)
+            byStart[iOp] = iOp;
+        Arrays.sort(byStart, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return ops.get(first).getStart() - ops.get(second).getStart();
+            }
+        });
+
+        ArrayList<HTMLElement> elements = new ArrayList<>(mHtmlElements.size() + ops.size() * 4);
+        //Indices of the spans which cover the current position, in the order they were given
+        ArrayList<Integer> active = new ArrayList<>();
+        int nextOp = 0;
+        int pos = 0;
+        int firstChanged = -1;
+        int lastChanged = -1;
+
+        //Tags of the document which are open at the current position, per type
+        int[] openTags = new int[SpanType.values().length];
+
+        for(HTMLElement element: mHtmlElements){
+            if(!(element instanceof HTMLText)){
+                int iType = element.getType().ordinal();
+                if(element.isOpenTag())
+                    ++openTags[iType];
+                else if(openTags[iType] > 0)
+                    --openTags[iType];
+                elements.add(element);
+                continue;
+            }
+            int size = element.getSize();
+            if(size == 0 || (active.isEmpty() && (nextOp == byStart.length || ops.get(byStart[nextOp]).getStart() >= pos + size))){
+                elements.add(element);
+                pos += size;
+                continue;
+            }
+
+            HTMLText text = (HTMLText) element;
+            if(firstChanged < 0)
+                firstChanged = elements.size();
+            int pieceStart = pos;
+            while(pieceStart < pos + size){
+                while(nextOp < byStart.length && ops.get(byStart[nextOp]).getStart() <= pieceStart){
+                    int iOp = byStart[nextOp++];
+                    int iInsert = active.size();
+                    while(iInsert > 0 && active.get(iInsert - 1) > iOp)
+                        --iInsert;
+                    active.add(iInsert, iOp);
+                }
+                int pieceEnd = pos + size;
+                if(nextOp < byStart.length)
+                    pieceEnd = Math.min(pieceEnd, ops.get(byStart[nextOp]).getStart());
+                for(int iActive = active.size() - 1; iActive >= 0; --iActive){
+                    int end = ops.get(active.get(iActive)).getEnd();
+                    if(end <= pieceStart)
+                        active.remove(iActive);
+                    else
+                        pieceEnd = Math.min(pieceEnd, end);
+                }
+
+                HTMLText piece = pieceStart == pos && pieceEnd == pos + size ? text :
+                    new HTMLText(text.substring(pieceStart - pos, pieceEnd - pos));
+                int tagCount = 0;
+                for(int iActive = 0; iActive < active.size(); ++iActive){
+                    if(isWrapped(ops, active, iActive, openTags)){
+                        Span op = ops.get(active.get(iActive));
+                        elements.add(getNewElement(op.getType(), true, op.getColor()));
+                        ++tagCount;
+                    }
+                }
+                elements.add(piece);
+                for(int iActive = active.size() - 1; iActive >= 0; --iActive){
+                    if(isWrapped(ops, active, iActive, openTags)){
+                        Span op = ops.get(active.get(iActive));
+                        elements.add(getNewElement(op.getType(), false, op.getColor()));
+                    }
+                }
+                if(tagCount > 0)
+                    mayContainNestedTags = true;
+                pieceStart = pieceEnd;
+            }
+            lastChanged = elements.size();
+            pos += size;
+        }
+
+        if(firstChanged >= 0){
+            int growth = elements.size() - mHtmlElements.size();
+            if(isRecording)
+                record(EditHistory.Change.replace(firstChanged, new ArrayList<>(mHtmlElements.subList(firstChanged, lastChanged - growth)),
+                    new ArrayList<>(elements.subList(firstChanged, lastChanged))));
+            mHtmlElements = elements;
+            isPositionIndexValid = false;
+            //Elements behind the changes moved by growth
+            if(mDirtyEnd > firstChanged)
+                mDirtyEnd += growth;
+            markDirty(firstChanged, lastChanged);
+        }
+        boolean changedOutside = CleanUp();
+        finishMetric(Metric.addSpan, startTime, ops.size());
+        return changedOutside;
+    }
+
+    /**
+     * @return True if the text piece needs a tag for the span at index of active. Only the last span of a type
+     * is used and bold, italic or underline text which is already formatted is not wrapped again.
+     */
+    private boolean isWrapped(ArrayList<Span> ops, ArrayList<Integer> active, int index, int[] openTags){
+        SpanType type = ops.get(active.get(index)).getType();
+        if(type != SpanType.color && openTags[type.ordinal()] > 0)
+            return false;
+        for(int iActive = index + 1; iActive < active.size(); ++iActive){
+            if(ops.get(active.get(iActive)).getType() == type)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Revert the last step. Consecutive keystrokes are one step, every added span is one step.
+     * @return False if there was nothing to undo
+     */
+    public boolean undo(){
+        isRecording = false;
+        revert(mHistory.takePendingStep());
+        EditHistory.Step step = mHistory.undo();
+        revert(step);
+        isRecording = true;
+        return step != null;
+    }
+
+    /**
+     * Apply the last reverted step again
+     * @return False if there was nothing to redo
+     */
+    public boolean redo(){
+        isRecording = false;
+        revert(mHistory.takePendingStep());
+        EditHistory.Step step = mHistory.redo();
+        if(step != null){
+            for(EditHistory.Change change: step.changes)
+                applyChange(change, false);
+        }
+        isRecording = true;
+        return step != null;
+    }
+
+    public boolean canUndo(){
+        return mHistory.canUndo();
+    }
+
+    public boolean canRedo(){
+        return mHistory.canRedo();
+    }
+
+    /**
+     * Limit the memory of the undo history. The oldest steps are dropped first.
+     * @param maxSteps Maximum number of undo and redo steps, 100 by default
+     * @param maxSize Maximum size of all steps in chars of changed text, tags count as one char. 1M by default
+     */
+    public void setHistoryLimits(int maxSteps, int maxSize){
+        mHistory.setLimits(maxSteps, maxSize);
+    }
+
+    /**
+     * Report the duration of the expensive operations. Without a listener nothing is measured.
+     * @param listener Listener or null to stop measuring
+     */
+    public void setMetricsListener(MetricsListener listener){
+        mMetricsListener = listener;
+    }
+
+    /**
+     * @return Start time for {@link #finishMetric(Metric, long, int)}
+     */
+    private long startMetric(Metric metric){
+        if(mMetricsListener == null)
+            return 0;
+        mMetricsListener.onStart(metric);
+        return System.nanoTime();
+    }
+
+    /**
+     * @param count Size of the work, -1 for the length of the visible text
+     */
+    private void finishMetric(Metric metric, long startTime, int count){
+        if(mMetricsListener == null)
+            return;
+        long duration = System.nanoTime() - startTime;
+        int length = length();
+        mMetricsListener.onFinish(metric, duration, count < 0 ? length : count, mHtmlElements.size(), length);
+    }
+
+    private void revert(EditHistory.Step step){
+        if(step == null)
+            return;
+        for(int iChange = step.changes.size() - 1; iChange >= 0; --iChange)
+            applyChange(step.changes.get(iChange), true);
+    }
+
+    private void applyChange(EditHistory.Change change, boolean isUndo){
+        switch(change.kind){
+            case EditHistory.ADD:
+            case EditHistory.REMOVE:
+                if(isUndo == (change.kind == EditHistory.ADD))
+                    removeElement(change.index);
+                else
+                    addElement(change.index, change.element);
+                break;
+            case EditHistory.INSERT_TEXT:
+            case EditHistory.DELETE_TEXT:
+                if(isUndo == (change.kind == EditHistory.INSERT_TEXT))
+                    deleteFromElement(change.index, change.pos, change.pos + change.text.length());
+                else
+                    insertIntoElement(change.index, change.pos, change.text);
+                break;
+            case EditHistory.SET:
+                setElement(change.index, isUndo ? change.oldElement : change.element);
+                break;
+            default:
+                replaceElements(change.index, isUndo ? change.added : change.removed, isUndo ? change.removed : change.added);
+        }
+    }
+
+    /**
+     * Spans of one type in [start, end), clipped to the range. They are paired the same way as
+     * Html.fromHtml does it: a closing tag closes the last opened tag of its type and tags without a
+     * closing tag have no effect.
+     */
+    public List<Span> getSpans(int start, int end, SpanType type){
+        ArrayList<Span> spans = new ArrayList<>();
+        int startIndex = getElementIndexForPosition(start);
+        if(start >= end || startIndex < 0)
+            return spans;
+        //Spans which reach into the range start at the outermost span around start or behind it
+        TagDepthIndex depths = getTagDepthIndex();
+        int first = depths.findSpanStart(type, startIndex);
+        //Positions and elements of the opened tags of this type
+        ArrayList<Integer> openPositions = new ArrayList<>();
+        ArrayList<HTMLElement> openTags = new ArrayList<>();
+        int pos = getPositionIndex().getSizeBefore(first);
+        for(int iEle = first; iEle < mHtmlElements.size(); ++iEle){
+            HTMLElement element = mHtmlElements.get(iEle);
+            if(element instanceof HTMLText){
+                pos += element.getSize();
+                //Tags opened behind the range don't matter
+                if(pos >= end && (openPositions.isEmpty() || openPositions.get(0) >= end))
+                    break;
+                continue;
+            }
+            if(element.getType() != type)
+                continue;
+
+            int delta = depths.getDelta(type, iEle);
+            if(delta > 0){
+                openPositions.add(pos);
+                openTags.add(element);
+            }
+            else if(delta < 0 && !openTags.isEmpty()){
+                int tagStart = Math.max(start, openPositions.remove(openPositions.size() - 1));
+                HTMLElement openTag = openTags.remove(openTags.size() - 1);
+                int tagEnd = Math.min(end, pos);
+                if(tagStart < tagEnd)
+                    spans.add(new Span(tagStart, tagEnd, type, openTag instanceof HTMLColor ? ((HTMLColor) openTag).getColor() : null));
+            }
+        }
+        return spans;
+    }
+
+    /**
+     *
+     * @param element Element we have to split
+     * @param indexOfElement Index in the HTMLElement-List
+     * @param type SpanType
+     * @param color String which is used as html attribute for the color
+     * @param startPos Start position where the element needs to be splitted
+     * @param endPos End position where the element needs to be splitted
+     */
+    private void addSpanToElement(HTMLText element, int indexOfElement, SpanType type, String color, int startPos, int endPos ){
+        //Wouldn't make sense to insert this empty tag
+        if(startPos == endPos)
+            return;
+
+        removeElement(indexOfElement);
+        if(endPos != element.getSize()){
+            //last part of text
+            addElement(indexOfElement, new HTMLText(element.substring(endPos, element.getSize())));
+        }
+        //Closing span tag
+        addElement(indexOfElement, getNewElement(type, false, color));
+        //Middle part between the tags
+        addElement(indexOfElement, new HTMLText(element.substring(startPos, endPos)));
+        //Opening span tag
+        addElement(indexOfElement, getNewElement(type, true, color));
+        //Only if startPos == 0, otherwise nothing would be added
+        if(startPos != 0){
+            //first part of text
+            addElement(indexOfElement, new HTMLText(element.substring(0,startPos)));
+        }
+    }
+
+    /**
+     * @return HTML of the open or closing tag of the span, e.g. to build a fragment for {@link #insertHtml(String, int, int)}
+     */
+    public static String getTag(Span span, boolean isOpen){
+        return getNewElement(span.getType(), isOpen, span.getColor()).getText();
+    }
+
+    static HTMLElement getNewElement(SpanType type, boolean isOpen, String color){
+        switch(type){
+            case bold: return HTMLBold.get(isOpen);
+            case underline: return HTMLUnderline.get(isOpen);
+            case italic: return HTMLItalic.get(isOpen);
+            case color: return HTMLColor.get(isOpen, color);
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package de.cavus700.customizableedittext.model;
+
+/**
+ * One entry of a {@link HTMLDocument}: either text or an open or closing tag.
+ * Tags are immutable and shared, so they can be compared by {@link #getType()} and reused in every document.
+ */
+public abstract class HTMLElement{
+    private final SpanType type;
+    private final boolean isOpenTag;
+    protected String text;
+
+    HTMLElement(SpanType type, boolean isOpenTag, String text){
+        this.type = type;
+        this.isOpenTag = isOpenTag;
+        this.text = text;
+    }
+
+    public boolean isOpenTag(){ return this.isOpenTag;}
+    public int getSize(){return text == null ? 0 : text.length();}
+    public String getText(){return this.text;}
+    /**
+     * @return Type of the tag, null for text
+     */
+    public SpanType getType() {return type;}
+}
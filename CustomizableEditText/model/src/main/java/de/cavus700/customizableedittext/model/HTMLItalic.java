@@ -0,0 +1,9 @@
+package de.cavus700.customizableedittext.model;
+
+public class HTMLItalic extends HTMLElement{
+    static final HTMLItalic OPEN = new HTMLItalic(true);
+    static final HTMLItalic CLOSE = new HTMLItalic(false);
+
+    private HTMLItalic(boolean isOpenTag){super(SpanType.italic, isOpenTag, isOpenTag ? "<i>":"</i>");}
+    static HTMLItalic get(boolean isOpenTag){return isOpenTag ? OPEN : CLOSE;}
+}
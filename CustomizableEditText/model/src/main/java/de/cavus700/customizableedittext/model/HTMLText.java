@@ -0,0 +1,126 @@
+package de.cavus700.customizableedittext.model;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Text element backed by a gap buffer. Typing moves the gap to the cursor so inserts and deletes
+ * don't copy the whole text. The text is only stored in the buffer, {@link #getText()} builds a String on
+ * each call, so prefer {@link #appendTo(StringBuilder)} or {@link #writeTo(Appendable)}.
+ */
+public class HTMLText extends HTMLElement{
+    private char[] mBuffer;
+    private int mGapStart;
+    private int mGapEnd;
+
+    HTMLText(String text){super(null, false, null); setText(text);}
+
+    void setText(String text){
+        mBuffer = text.toCharArray();
+        mGapStart = mGapEnd = mBuffer.length;
+    }
+
+    @Override
+    public int getSize(){return mBuffer.length - (mGapEnd - mGapStart);}
+
+    @Override
+    public String getText(){
+        return substring(0, getSize());
+    }
+
+    /**
+     * Append the text to out without building a String of it
+     */
+    public void appendTo(StringBuilder out){
+        out.append(mBuffer, 0, mGapStart);
+        out.append(mBuffer, mGapEnd, mBuffer.length - mGapEnd);
+    }
+
+    public String substring(int start, int end){
+        char[] chars = new char[end - start];
+        int beforeGap = Math.max(0, Math.min(end, mGapStart) - start);
+        System.arraycopy(mBuffer, start, chars, 0, beforeGap);
+        System.arraycopy(mBuffer, start + beforeGap + (mGapEnd - mGapStart), chars, beforeGap, chars.length - beforeGap);
+        return new String(chars);
+    }
+
+    void insert(int pos, String textToAdd){
+        moveGap(pos);
+        ensureGap(textToAdd.length());
+        textToAdd.getChars(0, textToAdd.length(), mBuffer, mGapStart);
+        mGapStart += textToAdd.length();
+    }
+
+    void delete(int start, int end){
+        moveGap(start);
+        mGapEnd += end - start;
+    }
+
+    /**
+     * Append the text to out and replace line breaks with <br/>
+     */
+    public void writeTo(Appendable out) throws IOException{
+        writeTo(out, 0, getSize());
+    }
+
+    /**
+     * Append the text between start and end to out and replace line breaks with <br/>
+     */
+    public void writeTo(Appendable out, int start, int end) throws IOException{
+        int gap = mGapEnd - mGapStart;
+        if(start < mGapStart)
+            writeRange(out, start, Math.min(end, mGapStart));
+        if(end > mGapStart)
+            writeRange(out, Math.max(start, mGapStart) + gap, end + gap);
+    }
+
+    private void writeRange(Appendable out, int start, int end) throws IOException{
+        int runStart = start;
+        for(int iChar = start; iChar < end; ++iChar){
+            if(mBuffer[iChar] == '\n'){
+                writeChars(out, runStart, iChar);
+                out.append("<br/>");
+                runStart = iChar + 1;
+            }
+        }
+        writeChars(out, runStart, end);
+    }
+
+    private void writeChars(Appendable out, int start, int end) throws IOException{
+        if(start == end)
+            return;
+        if(out instanceof StringBuilder)
+            ((StringBuilder) out).append(mBuffer, start, end - start);
+        else if(out instanceof Writer)
+            ((Writer) out).write(mBuffer, start, end - start);
+        else
+            out.append(CharBuffer.wrap(mBuffer, start, end - start));
+    }
+
+    private void moveGap(int pos){
+        if(pos < mGapStart){
+            int count = mGapStart - pos;
+            System.arraycopy(mBuffer, pos, mBuffer, mGapEnd - count, count);
+            mGapStart -= count;
+            mGapEnd -= count;
+        }
+        else if(pos > mGapStart){
+            int count = pos - mGapStart;
+            System.arraycopy(mBuffer, mGapEnd, mBuffer, mGapStart, count);
+            mGapStart += count;
+            mGapEnd += count;
+        }
+    }
+
+    private void ensureGap(int size){
+        if(mGapEnd - mGapStart >= size)
+            return;
+        int tail = mBuffer.length - mGapEnd;
+        char[] buffer = new char[Math.max(mBuffer.length * 2, getSize() + size + 16)];
+        System.arraycopy(mBuffer, 0, buffer, 0, mGapStart);
+        System.arraycopy(mBuffer, mGapEnd, buffer, buffer.length - tail, tail);
+        mGapEnd = buffer.length - tail;
+        mBuffer = buffer;
+    }
+}
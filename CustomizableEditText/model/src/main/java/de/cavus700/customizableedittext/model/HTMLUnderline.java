@@ -0,0 +1,9 @@
+package de.cavus700.customizableedittext.model;
+
+public class HTMLUnderline extends HTMLElement{
+    static final HTMLUnderline OPEN = new HTMLUnderline(true);
+    static final HTMLUnderline CLOSE = new HTMLUnderline(false);
+
+    private HTMLUnderline(boolean isOpenTag){super(SpanType.underline, isOpenTag, isOpenTag ? "<u>":"</u>");}
+    static HTMLUnderline get(boolean isOpenTag){return isOpenTag ? OPEN : CLOSE;}
+}
@@ -0,0 +1,176 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Converts texts in the format of {@link HTMLDocument#getPlainText()} without a view, e.g. in a sync worker or
+ * on a server. It parses, normalizes and writes like {@link HTMLDocument}. All methods may be called from any
+ * thread. Each thread reuses one document and its buffers, so converting many texts allocates little more
+ * than the results. The document is cleared after each text and buffers of unusually large texts are dropped,
+ * so an idle thread doesn't keep the largest text it converted.
+ */
+public final class HtmlConverter{
+    public enum Conversion{
+        //Visible text with line breaks instead of <br/>
+        htmlToText,
+        //Same text and styles with merged and without nested tags
+        normalizeHtml,
+        //Plain text as HTML, tags in the text are not escaped because the format has no escaping
+        textToHtml
+    }
+
+    //Characters of the text buffer of a thread which are kept for the next text
+    private static final int MAX_KEPT_TEXT_SIZE = 64 * 1024;
+    //Each task converts a chunk of texts, more chunks than threads balance texts of different sizes
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    //Shared by the converters which were created without an executor
+    private static ExecutorService sDefaultExecutor;
+    private static int sDefaultThreads;
+
+    private static final ThreadLocal<Worker> sWorkers = new ThreadLocal<Worker>(){
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Reused by all conversions of one thread
+     */
+    private static final class Worker{
+        final HTMLDocument document = new HTMLDocument();
+        final StringBuilder text = new StringBuilder();
+
+        Worker(){
+            //Nothing is undone, changes of the normalization don't have to be kept
+            document.setHistoryLimits(0, 0);
+        }
+
+        void clear(){
+            document.clear();
+            text.setLength(0);
+            if(text.capacity() > MAX_KEPT_TEXT_SIZE)
+                text.trimToSize();
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final int mThreads;
+
+    /**
+     * Convert lists of texts on a shared pool with one thread per processor
+     */
+    public HtmlConverter(){
+        mExecutor = getDefaultExecutor();
+        mThreads = sDefaultThreads;
+    }
+
+    /**
+     * @param executor Runs the conversions of {@link #convertAll(List, Conversion)}, it is not shut down
+     * @param threads Number of threads of the executor, the texts are split into chunks for them
+     */
+    public HtmlConverter(ExecutorService executor, int threads){
+        mExecutor = executor;
+        mThreads = Math.max(1, threads);
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor(){
+        if(sDefaultExecutor == null){
+            sDefaultThreads = Runtime.getRuntime().availableProcessors();
+            final AtomicInteger count = new AtomicInteger();
+            sDefaultExecutor = Executors.newFixedThreadPool(sDefaultThreads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "HtmlConverter-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Convert one text on the calling thread
+     * @param text Text in the input format of the conversion, may be null
+     * @return Converted text, empty for null
+     */
+    public String convert(String text, Conversion conversion){
+        Worker worker = sWorkers.get();
+        HTMLDocument document = worker.document;
+        try {
+            switch(conversion){
+                case htmlToText:
+                    document.setText(text);
+                    worker.text.setLength(0);
+                    document.appendVisibleText(worker.text);
+                    return worker.text.toString();
+                case normalizeHtml:
+                    document.setText(text);
+                    document.normalize();
+                    return document.toHtml();
+                default:
+                    document.setText((String) null);
+                    if(text != null)
+                        document.addText(text, 0);
+                    return document.toHtml();
+            }
+        } finally {
+            worker.clear();
+        }
+    }
+
+    /**
+     * Convert many texts in parallel on the executor of this converter, e.g. all stored notes
+     * @return Converted texts in the order of texts. A text which can't be converted is null, the others are still
+     * converted.
+     * @throws InterruptedException If the calling thread was interrupted while waiting for the conversions
+     */
+    public List<String> convertAll(final List<String> texts, final Conversion conversion) throws InterruptedException{
+        final String[] results = new String[texts.size()];
+        int chunkSize = Math.max(1, (texts.size() + mThreads * CHUNKS_PER_THREAD - 1) / (mThreads * CHUNKS_PER_THREAD));
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        for(int iChunk = 0; iChunk < texts.size(); iChunk += chunkSize){
+            final int start = iChunk;
+            final int end = Math.min(texts.size(), iChunk + chunkSize);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for(int iText = start; iText < end; ++iText){
+                        try {
+                            results[iText] = convert(texts.get(iText), conversion);
+                        } catch (RuntimeException e) {
+                            //One bad text must not abort the whole batch, its result stays null
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        //invokeAll waits for all tasks, get makes their results visible to this thread
+        for(Future<Void> future: mExecutor.invokeAll(tasks)){
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if(cause instanceof Error)
+                    throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
+        }
+        return Arrays.asList(results);
+    }
+}
@@ -0,0 +1,176 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Intervals [start, end) with a color, stored in a treap ordered by start. Every node knows the biggest end
+ * in its subtree so overlap queries only visit matching nodes. Shifting all intervals behind a position is
+ * done lazily in O(log n), which keeps text edits cheap.
+ */
+class IntervalTree{
+    private static final Random PRIORITIES = new Random(0x5eed);
+
+    private static class Node{
+        int start;
+        int end;
+        int maxEnd;
+        final String color;
+        final int priority;
+        //Pending shift for the whole subtree
+        int shift;
+        Node left;
+        Node right;
+
+        Node(int start, int end, String color, int priority){
+            this.start = start;
+            this.end = end;
+            this.maxEnd = end;
+            this.color = color;
+            this.priority = priority;
+        }
+    }
+
+    private Node mRoot;
+    private int mSize;
+
+    public int size(){
+        return mSize;
+    }
+
+    public void insert(int start, int end, String color){
+        Node node = new Node(start, end, color, PRIORITIES.nextInt());
+        Node[] parts = split(mRoot, start);
+        mRoot = merge(merge(parts[0], node), parts[1]);
+        ++mSize;
+    }
+
+    /**
+     * Add all intervals which overlap [start, end) to result, ordered by start
+     */
+    public void query(int start, int end, SpanType type, List<Span> result){
+        query(mRoot, start, end, type, result);
+    }
+
+    private void query(Node node, int start, int end, SpanType type, List<Span> result){
+        if(node == null)
+            return;
+        push(node);
+        if(node.maxEnd <= start)
+            return;
+        query(node.left, start, end, type, result);
+        if(node.start >= end)
+            return;
+        if(node.end > start)
+            result.add(new Span(node.start, node.end, type, node.color));
+        query(node.right, start, end, type, result);
+    }
+
+    /**
+     * Remove all intervals which overlap or touch [start, end) and add them to removed, ordered by start
+     */
+    public void removeTouching(int start, int end, SpanType type, List<Span> removed){
+        int oldSize = removed.size();
+        query(mRoot, start - 1, end + 1, type, removed);
+        for(int iSpan = oldSize; iSpan < removed.size(); ++iSpan){
+            mRoot = remove(mRoot, removed.get(iSpan).getStart());
+            --mSize;
+        }
+    }
+
+    /**
+     * Move every interval which starts at or behind pos by delta
+     */
+    public void shiftFrom(int pos, int delta){
+        Node[] parts = split(mRoot, pos);
+        if(parts[1] != null)
+            applyShift(parts[1], delta);
+        mRoot = merge(parts[0], parts[1]);
+    }
+
+    /**
+     * Change the end of the interval which starts at start
+     */
+    public void setEnd(int start, int end){
+        Node[] parts = split(mRoot, start);
+        Node[] single = split(parts[1], start + 1);
+        push(single[0]);
+        single[0].end = end;
+        update(single[0]);
+        mRoot = merge(merge(parts[0], single[0]), single[1]);
+    }
+
+    public void clear(){
+        mRoot = null;
+        mSize = 0;
+    }
+
+    private Node remove(Node node, int start){
+        Node[] parts = split(node, start);
+        Node[] single = split(parts[1], start + 1);
+        return merge(parts[0], single[1]);
+    }
+
+    /**
+     * @return Nodes with start &lt; key and nodes with start &gt;= key
+     */
+    private Node[] split(Node node, int key){
+        if(node == null)
+            return new Node[]{null, null};
+        push(node);
+        if(node.start < key){
+            Node[] parts = split(node.right, key);
+            node.right = parts[0];
+            update(node);
+            parts[0] = node;
+            return parts;
+        }
+        Node[] parts = split(node.left, key);
+        node.left = parts[1];
+        update(node);
+        parts[1] = node;
+        return parts;
+    }
+
+    private Node merge(Node left, Node right){
+        if(left == null)
+            return right;
+        if(right == null)
+            return left;
+        if(left.priority > right.priority){
+            push(left);
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        push(right);
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private void applyShift(Node node, int delta){
+        node.start += delta;
+        node.end += delta;
+        node.maxEnd += delta;
+        node.shift += delta;
+    }
+
+    private void push(Node node){
+        if(node.shift == 0)
+            return;
+        if(node.left != null)
+            applyShift(node.left, node.shift);
+        if(node.right != null)
+            applyShift(node.right, node.shift);
+        node.shift = 0;
+    }
+
+    private void update(Node node){
+        node.maxEnd = node.end;
+        if(node.left != null)
+            node.maxEnd = Math.max(node.maxEnd, node.left.maxEnd);
+        if(node.right != null)
+            node.maxEnd = Math.max(node.maxEnd, node.right.maxEnd);
+    }
+}
@@ -0,0 +1,24 @@
+package de.cavus700.customizableedittext.model;
+
+/**
+ * Range of the visible text which was found by {@link HTMLDocument#find(java.util.regex.Pattern)} or replaced
+ * by {@link HTMLDocument#replaceAll(java.util.regex.Pattern, String)}
+ */
+public class Match{
+    private final int start;
+    private final int end;
+    private final String text;
+
+    public Match(int start, int end, String text){
+        this.start = start;
+        this.end = end;
+        this.text = text;
+    }
+
+    public int getStart(){return start;}
+    public int getEnd(){return end;}
+    /**
+     * @return Found text or the text which replaced the range
+     */
+    public String getText(){return text;}
+}
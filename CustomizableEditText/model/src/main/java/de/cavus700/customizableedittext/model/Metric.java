@@ -0,0 +1,6 @@
+package de.cavus700.customizableedittext.model;
+
+/**
+ * Operations which are reported to a {@link MetricsListener}
+ */
+public enum Metric{parse, textChanged, addSpan, cleanUp, render, getPlainText}
@@ -0,0 +1,21 @@
+package de.cavus700.customizableedittext.model;
+
+/**
+ * Gets the duration of the expensive operations of a document. Operations can be nested, e.g. a
+ * {@link Metric#cleanUp} is reported inside of {@link Metric#getPlainText}.
+ * Called on the thread which runs the operation, so it should only record the values.
+ */
+public interface MetricsListener{
+    void onStart(Metric metric);
+
+    /**
+     * @param metric Finished operation
+     * @param durationNanos Time since {@link #onStart(Metric)}
+     * @param count Size of the work: visited elements for {@link Metric#cleanUp}, added spans for
+     *              {@link Metric#addSpan}, characters of the HTML for {@link Metric#parse} and characters
+     *              of the visible text for the other operations
+     * @param elementCount Elements of the document afterwards
+     * @param textLength Length of the visible text afterwards
+     */
+    void onFinish(Metric metric, long durationNanos, int count, int elementCount, int textLength);
+}
@@ -0,0 +1,104 @@
+package de.cavus700.customizableedittext.model;
+
+/**
+ * Collects the text changes of a view which are not applied to the document yet. An IME replaces the composed
+ * word again and again, so changes which overlap are merged into one range. {@link #finish(CharSequence)}
+ * shrinks it to the characters which really changed, so the formatting around them stays.
+ */
+public final class PendingTextChange{
+    private boolean isPending = false;
+    private int mStart;
+    //End of the changed range in the document and in the text of the view
+    private int mOldEnd;
+    private int mNewEnd;
+    //Text of the changed range in the document
+    private final StringBuilder mOldText = new StringBuilder();
+
+    public boolean isPending(){
+        return isPending;
+    }
+
+    /**
+     * @return True if a change of [start, start + count) can't be merged into the pending one because there is
+     * unchanged text between them. The pending change has to be applied first.
+     */
+    public boolean isSeparate(int start, int count){
+        return isPending && (start + count < mStart || start > mNewEnd);
+    }
+
+    /**
+     * Call before count characters at start of text are replaced, like TextWatcher.beforeTextChanged
+     * @param text Text of the view before the change
+     */
+    public void beforeChange(CharSequence text, int start, int count){
+        int end = start + count;
+        if(!isPending){
+            isPending = true;
+            mStart = start;
+            mOldEnd = end;
+            mNewEnd = end;
+            mOldText.setLength(0);
+            mOldText.append(text, start, end);
+            return;
+        }
+        //Text around the pending range is still the same as in the document
+        if(start < mStart){
+            mOldText.insert(0, text.subSequence(start, mStart));
+            mStart = start;
+        }
+        if(end > mNewEnd){
+            mOldText.append(text, mNewEnd, end);
+            mOldEnd += end - mNewEnd;
+            mNewEnd = end;
+        }
+    }
+
+    /**
+     * Call after before characters were replaced with count new ones, like TextWatcher.onTextChanged
+     */
+    public void afterChange(int before, int count){
+        if(isPending)
+            mNewEnd += count - before;
+    }
+
+    /**
+     * Stop collecting and shrink the range to the part between the common prefix and suffix of the old and the
+     * new text. Then [{@link #getStart()}, {@link #getOldEnd()}) of the document has to be replaced with
+     * [{@link #getStart()}, {@link #getNewEnd()}) of text.
+     * @param text Text of the view after the changes
+     */
+    public void finish(CharSequence text){
+        isPending = false;
+        int oldLength = mOldText.length();
+        int newLength = mNewEnd - mStart;
+        int prefix = 0;
+        while(prefix < oldLength && prefix < newLength && mOldText.charAt(prefix) == text.charAt(mStart + prefix))
+            ++prefix;
+        int suffix = 0;
+        while(suffix < oldLength - prefix && suffix < newLength - prefix &&
+            mOldText.charAt(oldLength - 1 - suffix) == text.charAt(mNewEnd - 1 - suffix))
+            ++suffix;
+        mStart += prefix;
+        mOldEnd -= suffix;
+        mNewEnd -= suffix;
+    }
+
+    /**
+     * Drop the pending change, e.g. because the whole text is replaced
+     */
+    public void clear(){
+        isPending = false;
+    }
+
+    public int getStart(){
+        return mStart;
+    }
+
+    public int getOldEnd(){
+        return mOldEnd;
+    }
+
+    public int getNewEnd(){
+        return mNewEnd;
+    }
+}
@@ -0,0 +1,444 @@
+package de.cavus700.customizableedittext.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Document for very large texts which is split into paragraphs. A paragraph ends at a line break where no tag
+ * is open, so each one is a complete {@link HTMLDocument} on its own. Loading only finds the paragraphs and
+ * their lengths, a paragraph is parsed into elements when it is edited or its spans are requested.
+ */
+public class SegmentedDocument{
+    private static final String LINE_BREAK = "<br/>";
+    //Tag letters after '<' or '</' in the order of the counters
+    private static final String TAG_LETTERS = "buif";
+
+    private static class Segment{
+        //Markup until the segment is parsed
+        String html;
+        //True if html is already in the format of getPlainText
+        boolean isNormalized;
+        HTMLDocument document;
+        //Length of the visible text
+        int length;
+
+        Segment(String html, int length){
+            this.html = html;
+            this.length = length;
+        }
+
+        Segment(HTMLDocument document){
+            this.document = document;
+            this.length = document.length();
+        }
+    }
+
+    private ArrayList<Segment> mSegments = new ArrayList<>();
+    private final TextPositionIndex mIndex = new TextPositionIndex();
+    private boolean isIndexValid = false;
+    //Used to normalize segments which are not parsed
+    private final HTMLDocument mScratchDocument = new HTMLDocument();
+
+    /**
+     * Replace the document with text which only contains the supported tags.
+     * The text is only scanned for paragraphs, no elements are created.
+     * @param text Text to split, may be null
+     */
+    public void setText(String text){
+        mSegments = new ArrayList<>();
+        isIndexValid = false;
+        if(text != null)
+            split(text, mSegments);
+    }
+
+    /**
+     * Add the paragraphs of text as segments which are not parsed
+     */
+    private static void split(String text, List<Segment> segments){
+        Matcher fontMatcher = HTMLDocument.FONT_TAG.matcher(text);
+        int[] openTags = new int[TAG_LETTERS.length()];
+        int openCount = 0;
+        int segmentStart = 0;
+        int length = 0;
+        int iChar = 0;
+
+        while(iChar < text.length()){
+            char c = text.charAt(iChar);
+            if(c == '<' && text.startsWith(LINE_BREAK, iChar)){
+                iChar += LINE_BREAK.length();
+            }
+            else if(c == '<'){
+                int tagEnd = HTMLDocument.findEndOfSupportedTag(text, iChar, fontMatcher);
+                if(tagEnd < 0){
+                    //No supported tag, '<' is text
+                    ++iChar;
+                    ++length;
+                    continue;
+                }
+                boolean isClosing = text.charAt(iChar + 1) == '/';
+                int iType = TAG_LETTERS.indexOf(text.charAt(isClosing ? iChar + 2 : iChar + 1));
+                if(!isClosing){
+                    ++openTags[iType];
+                    ++openCount;
+                }
+                else if(openTags[iType] > 0){
+                    --openTags[iType];
+                    --openCount;
+                }
+                iChar = tagEnd;
+                continue;
+            }
+            else{
+                ++iChar;
+                if(c != '\n'){
+                    ++length;
+                    continue;
+                }
+            }
+
+            //Line break, the paragraph ends here if no tag is open
+            ++length;
+            if(openCount == 0){
+                segments.add(new Segment(text.substring(segmentStart, iChar), length));
+                segmentStart = iChar;
+                length = 0;
+            }
+        }
+        if(segmentStart < text.length())
+            segments.add(new Segment(text.substring(segmentStart), length));
+    }
+
+    /**
+     * Append the visible text of markup which was not parsed, the same text a parsed document would have
+     */
+    private static void appendVisibleText(String html, StringBuilder out){
+        Matcher fontMatcher = HTMLDocument.FONT_TAG.matcher(html);
+        int iChar = 0;
+        while(iChar < html.length()){
+            char c = html.charAt(iChar);
+            if(c == '<' && html.startsWith(LINE_BREAK, iChar)){
+                out.append('\n');
+                iChar += LINE_BREAK.length();
+                continue;
+            }
+            if(c == '<'){
+                int tagEnd = HTMLDocument.findEndOfSupportedTag(html, iChar, fontMatcher);
+                if(tagEnd >= 0){
+                    iChar = tagEnd;
+                    continue;
+                }
+            }
+            out.append(c);
+            ++iChar;
+        }
+    }
+
+    /**
+     * @return Length of the visible text
+     */
+    public int length(){
+        return getIndex().getSizeBefore(mSegments.size());
+    }
+
+    public int getSegmentCount(){
+        return mSegments.size();
+    }
+
+    /**
+     * @return Number of segments which are parsed into elements
+     */
+    public int getParsedSegmentCount(){
+        int count = 0;
+        for(Segment segment: mSegments){
+            if(segment.document != null)
+                ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Parse the segments around the text between start and end, e.g. the text which becomes visible or is edited.
+     * These are the segments which contain a character of [start, end] and the one which ends at start.
+     * @return Ranges {start, end} of the visible text of the segments which were parsed by this call, ordered
+     */
+    public List<int[]> parse(int start, int end){
+        ArrayList<int[]> ranges = new ArrayList<>();
+        if(mSegments.isEmpty())
+            return ranges;
+        int last = findSegment(end + 1);
+        for(int index = findSegment(start); index <= last; ++index){
+            Segment segment = mSegments.get(index);
+            if(segment.document == null){
+                int offset = getIndex().getSizeBefore(index);
+                getDocument(index);
+                ranges.add(new int[]{offset, offset + segment.length});
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return Start of the segment which contains the character at pos
+     */
+    public int getSegmentStart(int pos){
+        return mSegments.isEmpty() ? 0 : getIndex().getSizeBefore(findSegment(pos + 1));
+    }
+
+    /**
+     * @return End of the segment which contains the character in front of pos
+     */
+    public int getSegmentEnd(int pos){
+        return mSegments.isEmpty() ? 0 : getIndex().getSizeBefore(findSegment(pos) + 1);
+    }
+
+    /**
+     * Insert text which was typed at a position of the visible text. Like {@link HTMLDocument#addText(String, int)}
+     * it goes into the segment which ends at start, so text at the start of a paragraph stays outside of its tags.
+     * A line break where no tag is open starts a new segment.
+     * @param textToAdd New text
+     * @param start Position in the visible text
+     */
+    public void addText(String textToAdd, int start){
+        if(mSegments.isEmpty()){
+            mSegments.add(new Segment(new HTMLDocument()));
+            isIndexValid = false;
+        }
+        int index = findSegment(start);
+        int offset = getIndex().getSizeBefore(index);
+        if(start == offset + mSegments.get(index).length && index + 1 < mSegments.size()){
+            //Behind the line break of the segment the text starts the next paragraph. The text is added to both
+            //of them, so it gets the tags which are closed and reopened at the break like in the whole text.
+            HTMLDocument joined = join(index, index + 1);
+            joined.addText(textToAdd, start - offset);
+            replaceSegments(index, index + 1, joined.getPlainText());
+            return;
+        }
+        HTMLDocument document = getDocument(index);
+        document.addText(textToAdd, start - offset);
+        updateLength(index);
+        if(textToAdd.indexOf('\n') >= 0)
+            replaceSegments(index, index, document.getPlainText());
+    }
+
+    /**
+     * Remove text between two positions of the visible text.
+     * If the text spreads over multiple segments or the line break at the end of a segment is removed, the first
+     * and the last segment are joined and split again at the remaining line breaks.
+     * @param start First removed position
+     * @param end Position behind the last removed character
+     */
+    public void removeText(int start, int end){
+        if(start >= end)
+            return;
+        int first = findSegment(start + 1);
+        int last = findSegment(end);
+        //The line break at the end of last is removed, its paragraph continues in the next segment
+        if(last + 1 < mSegments.size() && end == getIndex().getSizeBefore(last + 1))
+            ++last;
+        int firstOffset = getIndex().getSizeBefore(first);
+        if(first == last){
+            getDocument(first).removeText(start - firstOffset, end - firstOffset);
+            updateLength(first);
+            return;
+        }
+
+        //The segments in between are removed as a whole. The first and the last one are joined before the text is
+        //removed, so tags around the removed range are paired as in the whole text.
+        StringBuilder html = new StringBuilder();
+        appendPlainText(mSegments.get(first), html);
+        appendPlainText(mSegments.get(last), html);
+        mScratchDocument.setText((String) null);
+        HTMLDocument joined = parseNormalized(html.toString());
+        joined.removeText(start - firstOffset, mSegments.get(first).length + end - getIndex().getSizeBefore(last));
+        replaceSegments(first, last, joined.getPlainText());
+    }
+
+    /**
+     * Replace the segments first to last with the paragraphs of html, they are parsed right away
+     * because they were edited
+     */
+    private void replaceSegments(int first, int last, String html){
+        ArrayList<Segment> parts = new ArrayList<>();
+        split(html, parts);
+        if(first == last && parts.size() == 1)
+            return;
+        if(parts.isEmpty())
+            parts.add(new Segment(new HTMLDocument()));
+        for(int iPart = 0; iPart < parts.size(); ++iPart){
+            Segment part = parts.get(iPart);
+            if(part.document == null)
+                parts.set(iPart, new Segment(parseNormalized(part.html)));
+        }
+        List<Segment> replaced = mSegments.subList(first, last + 1);
+        replaced.clear();
+        replaced.addAll(parts);
+        isIndexValid = false;
+    }
+
+    /**
+     * Add a HTML tag around the text between start and end. A tag over several paragraphs is open at their line
+     * breaks, so they become one segment like they would be after loading the text again.
+     * @return True if the style also changed outside of [start, end) because a nested tag was removed
+     * @throws IllegalArgumentException If a color span has no color
+     */
+    public boolean addSpan(int start, int end, SpanType type, String color){
+        HTMLDocument.checkColor(type, color);
+        if(start >= end)
+            return false;
+        int first = findSegment(start + 1);
+        int last = findSegment(end);
+        int offset = getIndex().getSizeBefore(first);
+        //The tag may continue one which ends or starts at the same line break
+        if(start == offset && first > 0)
+            offset -= mSegments.get(--first).length;
+        if(last + 1 < mSegments.size() && end == getIndex().getSizeBefore(last + 1))
+            ++last;
+        if(first == last)
+            return getDocument(first).addSpan(start - offset, end - offset, type, color);
+        HTMLDocument joined = join(first, last);
+        boolean changedOutside = joined.addSpan(start - offset, end - offset, type, color);
+        replaceSegments(first, last, joined.getPlainText());
+        return changedOutside;
+    }
+
+    /**
+     * Spans of one type in [start, end), clipped to the range. Only the segments in the range are parsed.
+     */
+    public List<Span> getSpans(int start, int end, SpanType type){
+        ArrayList<Span> spans = new ArrayList<>();
+        if(start >= end || mSegments.isEmpty())
+            return spans;
+        int index = findSegment(start + 1);
+        int offset = getIndex().getSizeBefore(index);
+        while(index < mSegments.size() && offset < end){
+            int length = mSegments.get(index).length;
+            for(Span span: getDocument(index).getSpans(Math.max(0, start - offset), Math.min(length, end - offset), type))
+                spans.add(new Span(span.getStart() + offset, span.getEnd() + offset, type, span.getColor()));
+            offset += length;
+            ++index;
+        }
+        return spans;
+    }
+
+    /**
+     * @return Text without tags and with line breaks, the same as {@link HTMLDocument#getVisibleText()} of the
+     * whole text. Segments which are not parsed stay unparsed.
+     */
+    public String getVisibleText(){
+        StringBuilder text = new StringBuilder(length());
+        for(Segment segment: mSegments){
+            if(segment.document != null)
+                segment.document.appendVisibleText(text);
+            else
+                appendVisibleText(segment.html, text);
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Text with all added HTML tags. It has the same text and styles as {@link HTMLDocument#getPlainText()}
+     * of the whole text, but each segment is normalized on its own, so the tags can be split differently.
+     */
+    public String getPlainText(){
+        StringBuilder html = new StringBuilder();
+        try {
+            writePlainText(html);
+        } catch (IOException e) {
+            //Never thrown by a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return html.toString();
+    }
+
+    /**
+     * Write the same text as {@link #getPlainText()} to out.
+     * Segments which are not parsed are only normalized once and stay unparsed.
+     */
+    public void writePlainText(Appendable out) throws IOException{
+        for(Segment segment: mSegments)
+            appendPlainText(segment, out);
+        mScratchDocument.setText((String) null);
+    }
+
+    private void appendPlainText(Segment segment, Appendable out) throws IOException{
+        if(segment.document != null){
+            segment.document.writePlainText(out);
+            return;
+        }
+        if(!segment.isNormalized){
+            mScratchDocument.setText(segment.html);
+            segment.html = mScratchDocument.getPlainText();
+            segment.isNormalized = true;
+        }
+        out.append(segment.html);
+    }
+
+    private void appendPlainText(Segment segment, StringBuilder out){
+        try {
+            appendPlainText(segment, (Appendable) out);
+        } catch (IOException e) {
+            //Never thrown by a StringBuilder
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return One document of the segments first to last. Tags which are closed at the end of a segment and opened
+     * again in the next one are merged like in the whole text.
+     */
+    private HTMLDocument join(int first, int last){
+        StringBuilder html = new StringBuilder();
+        for(int index = first; index <= last; ++index)
+            appendPlainText(mSegments.get(index), html);
+        mScratchDocument.setText((String) null);
+        return parseNormalized(html.toString());
+    }
+
+    /**
+     * Typing next to tags depends on the normalized elements, so documents are normalized right after parsing.
+     * Then they behave the same as the whole text after {@link HTMLDocument#getPlainText()}.
+     */
+    private static HTMLDocument parseNormalized(String html){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+        document.getCleanElements();
+        return document;
+    }
+
+    /**
+     * @return Index of the first segment which ends at or behind pos
+     */
+    private int findSegment(int pos){
+        return Math.min(getIndex().findIndex(pos), mSegments.size() - 1);
+    }
+
+    private HTMLDocument getDocument(int index){
+        Segment segment = mSegments.get(index);
+        if(segment.document == null){
+            segment.document = parseNormalized(segment.html);
+            segment.html = null;
+        }
+        return segment.document;
+    }
+
+    private void updateLength(int index){
+        Segment segment = mSegments.get(index);
+        int length = segment.document.length();
+        if(isIndexValid)
+            mIndex.add(index, length - segment.length);
+        segment.length = length;
+    }
+
+    private TextPositionIndex getIndex(){
+        if(!isIndexValid){
+            int[] lengths = new int[mSegments.size()];
+            for(int iSegment = 0; iSegment < lengths.length; ++iSegment)
+                lengths[iSegment] = mSegments.get(iSegment).length;
+            mIndex.rebuild(lengths, lengths.length);
+            isIndexValid = true;
+        }
+        return mIndex;
+    }
+}
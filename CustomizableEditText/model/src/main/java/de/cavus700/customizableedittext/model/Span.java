@@ -0,0 +1,26 @@
+package de.cavus700.customizableedittext.model;
+
+/**
+ * Range of the visible text which is formatted with one tag
+ */
+public class Span{
+    private final int start;
+    private final int end;
+    private final SpanType type;
+    private final String color;
+
+    public Span(int start, int end, SpanType type, String color){
+        this.start = start;
+        this.end = end;
+        this.type = type;
+        this.color = color;
+    }
+
+    public int getStart(){return start;}
+    public int getEnd(){return end;}
+    public SpanType getType(){return type;}
+    /**
+     * @return Color without '#' or null if this is no color span
+     */
+    public String getColor(){return color;}
+}
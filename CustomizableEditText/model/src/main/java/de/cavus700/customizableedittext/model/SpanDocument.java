@@ -0,0 +1,287 @@
+package de.cavus700.customizableedittext.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Alternative to {@link HTMLDocument} which stores the visible text once and every style as a range in an
+ * {@link IntervalTree} per {@link SpanType}. Spans of one type never overlap, touching spans with the same
+ * color are merged. Queries and edits cost O(log n + k) for k affected spans, HTML is only built on demand.
+ */
+public class SpanDocument{
+    //Longer spans are opened first so they have to be reopened less often
+    private static final Comparator<Span> BY_START = new Comparator<Span>() {
+        @Override
+        public int compare(Span first, Span second) {
+            if(first.getStart() != second.getStart())
+                return first.getStart() < second.getStart() ? -1 : 1;
+            return second.getEnd() - first.getEnd();
+        }
+    };
+
+    private final HTMLText mText = new HTMLText("");
+    private final EnumMap<SpanType, IntervalTree> mSpans = new EnumMap<>(SpanType.class);
+
+    public SpanDocument(){
+        for(SpanType type: SpanType.values())
+            mSpans.put(type, new IntervalTree());
+    }
+
+    /**
+     * Replace the document with text which only contains the supported tags.
+     * Tags are paired the same way as {@link HTMLDocument#getSpans(int, int, SpanType)} does it.
+     * @param html Text to parse, may be null
+     */
+    public void setText(String html){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+
+        StringBuilder text = new StringBuilder();
+        for(HTMLElement element: document.getElements()){
+            if(element instanceof HTMLText)
+                ((HTMLText) element).appendTo(text);
+        }
+        mText.setText(text.toString());
+
+        for(SpanType type: SpanType.values()){
+            mSpans.get(type).clear();
+            for(Span span: document.getSpans(0, text.length(), type))
+                addSpan(span.getStart(), span.getEnd(), type, span.getColor());
+        }
+    }
+
+    /**
+     * @return Length of the visible text
+     */
+    public int length(){
+        return mText.getSize();
+    }
+
+    /**
+     * @return The visible text without tags
+     */
+    public String getText(){
+        return mText.getText();
+    }
+
+    /**
+     * Insert typed text. Spans around the position grow, text at the end of a span is not formatted.
+     * @param textToAdd New text
+     * @param start Position in the visible text
+     */
+    public void addText(String textToAdd, int start){
+        int count = textToAdd.length();
+        if(count == 0)
+            return;
+        mText.insert(start, textToAdd);
+
+        ArrayList<Span> spans = new ArrayList<>();
+        for(SpanType type: SpanType.values()){
+            IntervalTree tree = mSpans.get(type);
+            spans.clear();
+            tree.query(start, start + 1, type, spans);
+            tree.shiftFrom(start, count);
+            for(Span span: spans){
+                if(span.getStart() < start)
+                    tree.setEnd(span.getStart(), span.getEnd() + count);
+            }
+        }
+    }
+
+    /**
+     * Remove text between two positions of the visible text. Spans inside are dropped, spans which
+     * touch afterwards are merged.
+     * @param start First removed position
+     * @param end Position behind the last removed character
+     */
+    public void removeText(int start, int end){
+        if(start >= end)
+            return;
+        mText.delete(start, end);
+
+        ArrayList<Span> spans = new ArrayList<>();
+        for(SpanType type: SpanType.values()){
+            IntervalTree tree = mSpans.get(type);
+            spans.clear();
+            tree.removeTouching(start, end, type, spans);
+            tree.shiftFrom(end, start - end);
+            for(Span span: spans){
+                int spanStart = mapRemoved(span.getStart(), start, end);
+                int spanEnd = mapRemoved(span.getEnd(), start, end);
+                if(spanStart < spanEnd)
+                    insertSpan(tree, spanStart, spanEnd, type, span.getColor());
+            }
+        }
+    }
+
+    private int mapRemoved(int pos, int start, int end){
+        if(pos <= start)
+            return pos;
+        return pos >= end ? pos - (end - start) : start;
+    }
+
+    /**
+     * Format the text between start and end. Spans of the same type and color are merged,
+     * a different color is replaced in the range.
+     * @param start Start position in the visible text
+     * @param end End position in the visible text
+     * @param type Span type
+     * @param color If type is no color span => ignored
+     * @throws IllegalArgumentException If a color span has no color
+     */
+    public void addSpan(int start, int end, SpanType type, String color){
+        HTMLDocument.checkColor(type, color);
+        //Wouldn't make sense to insert this empty span
+        if(start >= end)
+            return;
+        insertSpan(mSpans.get(type), start, end, type, type == SpanType.color ? color : null);
+    }
+
+    private void insertSpan(IntervalTree tree, int start, int end, SpanType type, String color){
+        ArrayList<Span> touching = new ArrayList<>();
+        tree.removeTouching(start, end, type, touching);
+        int newStart = start;
+        int newEnd = end;
+        for(Span span: touching){
+            if(color == null ? span.getColor() == null : color.equals(span.getColor())){
+                newStart = Math.min(newStart, span.getStart());
+                newEnd = Math.max(newEnd, span.getEnd());
+                continue;
+            }
+            //Keep the parts of the other color outside of the range
+            if(span.getStart() < start)
+                tree.insert(span.getStart(), Math.min(start, span.getEnd()), span.getColor());
+            if(span.getEnd() > end)
+                tree.insert(Math.max(end, span.getStart()), span.getEnd(), span.getColor());
+        }
+        tree.insert(newStart, newEnd, color);
+    }
+
+    /**
+     * Remove the formatting of one type between start and end
+     */
+    public void removeSpan(int start, int end, SpanType type){
+        if(start >= end)
+            return;
+        IntervalTree tree = mSpans.get(type);
+        ArrayList<Span> touching = new ArrayList<>();
+        tree.removeTouching(start, end, type, touching);
+        for(Span span: touching){
+            if(span.getStart() < start)
+                tree.insert(span.getStart(), Math.min(start, span.getEnd()), span.getColor());
+            if(span.getEnd() > end)
+                tree.insert(Math.max(end, span.getStart()), span.getEnd(), span.getColor());
+        }
+    }
+
+    /**
+     * Spans of one type in [start, end), clipped to the range
+     */
+    public List<Span> getSpans(int start, int end, SpanType type){
+        ArrayList<Span> spans = new ArrayList<>();
+        mSpans.get(type).query(start, end, type, spans);
+        for(int iSpan = 0; iSpan < spans.size(); ++iSpan){
+            Span span = spans.get(iSpan);
+            if(span.getStart() < start || span.getEnd() > end)
+                spans.set(iSpan, new Span(Math.max(start, span.getStart()), Math.min(end, span.getEnd()), type, span.getColor()));
+        }
+        return spans;
+    }
+
+    /**
+     * @return All spans which format the character at offset, at most one per type
+     */
+    public List<Span> getStylesAt(int offset){
+        ArrayList<Span> spans = new ArrayList<>();
+        for(SpanType type: SpanType.values())
+            mSpans.get(type).query(offset, offset + 1, type, spans);
+        return spans;
+    }
+
+    /**
+     * @return Text with the supported tags, in the same format as {@link HTMLDocument#getPlainText()}
+     */
+    public String toHtml(){
+        StringBuilder html = new StringBuilder();
+        try {
+            writeHtml(html);
+        } catch (IOException e) {
+            //Never thrown by a StringBuilder
+            throw new IllegalStateException(e);
+        }
+        return html.toString();
+    }
+
+    /**
+     * Write the text with properly nested tags. Where spans overlap the inner tags are closed and reopened.
+     */
+    public void writeHtml(Appendable out) throws IOException{
+        int length = length();
+        ArrayList<Span> spans = new ArrayList<>();
+        for(SpanType type: SpanType.values())
+            mSpans.get(type).query(0, length, type, spans);
+        Collections.sort(spans, BY_START);
+
+        int[] bounds = new int[spans.size() * 2 + 2];
+        int boundCount = 0;
+        bounds[boundCount++] = 0;
+        bounds[boundCount++] = length;
+        for(Span span: spans){
+            bounds[boundCount++] = span.getStart();
+            bounds[boundCount++] = span.getEnd();
+        }
+        Arrays.sort(bounds);
+
+        ArrayList<Span> opened = new ArrayList<>();
+        ArrayList<Span> reopened = new ArrayList<>();
+        int nextSpan = 0;
+        for(int iBound = 0; iBound < bounds.length - 1; ++iBound){
+            int pos = bounds[iBound];
+            if(pos == bounds[iBound + 1])
+                continue;
+
+            //Close everything down to the first span which ends here and reopen the ones which go on
+            int firstEnded = opened.size();
+            for(int iOpen = 0; iOpen < opened.size(); ++iOpen){
+                if(opened.get(iOpen).getEnd() <= pos){
+                    firstEnded = iOpen;
+                    break;
+                }
+            }
+            reopened.clear();
+            for(int iOpen = opened.size() - 1; iOpen >= firstEnded; --iOpen){
+                Span span = opened.remove(iOpen);
+                out.append(getTag(span, false));
+                if(span.getEnd() > pos)
+                    reopened.add(0, span);
+            }
+            for(Span span: reopened){
+                out.append(getTag(span, true));
+                opened.add(span);
+            }
+            while(nextSpan < spans.size() && spans.get(nextSpan).getStart() == pos){
+                Span span = spans.get(nextSpan++);
+                out.append(getTag(span, true));
+                opened.add(span);
+            }
+
+            mText.writeTo(out, pos, bounds[iBound + 1]);
+        }
+        for(int iOpen = opened.size() - 1; iOpen >= 0; --iOpen)
+            out.append(getTag(opened.get(iOpen), false));
+    }
+
+    private String getTag(Span span, boolean isOpen){
+        switch(span.getType()){
+            case bold: return HTMLBold.get(isOpen).getText();
+            case underline: return HTMLUnderline.get(isOpen).getText();
+            case italic: return HTMLItalic.get(isOpen).getText();
+            default: return HTMLColor.get(isOpen, span.getColor()).getText();
+        }
+    }
+}
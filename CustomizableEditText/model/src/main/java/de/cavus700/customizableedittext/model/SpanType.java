@@ -0,0 +1,3 @@
+package de.cavus700.customizableedittext.model;
+
+public enum SpanType{bold, underline, italic, color}
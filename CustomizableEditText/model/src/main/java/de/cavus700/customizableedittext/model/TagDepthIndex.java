@@ -0,0 +1,114 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Number of open tags per {@link SpanType} in front of each element of {@link HTMLDocument}.
+ * Tags are paired like {@link HTMLDocument#getSpans(int, int, SpanType)} does it, tags without a partner
+ * have no effect and count as zero. With it the tags of the spans around a position are found by walking
+ * back from the position only as far as the outermost span reaches.
+ */
+class TagDepthIndex{
+    private final int mTypeCount = SpanType.values().length;
+    //+1 for an open tag, -1 for its closing tag and 0 otherwise, per type
+    private int[][] mDeltas = new int[mTypeCount][1];
+    private final TextPositionIndex[] mDepths = new TextPositionIndex[mTypeCount];
+    private int mCount = 0;
+
+    TagDepthIndex(){
+        for(int iType = 0; iType < mTypeCount; ++iType)
+            mDepths[iType] = new TextPositionIndex();
+    }
+
+    void rebuild(ArrayList<HTMLElement> elements){
+        mCount = elements.size();
+        for(int iType = 0; iType < mTypeCount; ++iType){
+            if(mDeltas[iType].length < mCount)
+                mDeltas[iType] = new int[mCount];
+            else
+                Arrays.fill(mDeltas[iType], 0, mCount, 0);
+        }
+
+        //Indices of the open tags which are not closed yet, per type
+        ArrayList<ArrayList<Integer>> openTags = new ArrayList<>(mTypeCount);
+        for(int iType = 0; iType < mTypeCount; ++iType)
+            openTags.add(new ArrayList<Integer>());
+        for(int iEle = 0; iEle < mCount; ++iEle){
+            HTMLElement element = elements.get(iEle);
+            if(element instanceof HTMLText)
+                continue;
+            int iType = element.getType().ordinal();
+            ArrayList<Integer> open = openTags.get(iType);
+            if(element.isOpenTag()){
+                open.add(iEle);
+            }
+            else if(!open.isEmpty()){
+                mDeltas[iType][open.remove(open.size() - 1)] = 1;
+                mDeltas[iType][iEle] = -1;
+            }
+        }
+        for(int iType = 0; iType < mTypeCount; ++iType)
+            mDepths[iType].rebuild(mDeltas[iType], mCount);
+    }
+
+    /**
+     * Like {@link TextPositionIndex#trim(int)}
+     */
+    void trim(int maxCount){
+        for(int iType = 0; iType < mTypeCount; ++iType){
+            if(mDeltas[iType].length > maxCount)
+                mDeltas[iType] = new int[1];
+            mDepths[iType].trim(maxCount);
+        }
+        mCount = 0;
+    }
+
+    /**
+     * @return 1 if the element at index is an open tag of type with a partner, -1 if it is its closing tag, else 0
+     */
+    int getDelta(SpanType type, int index){
+        return mDeltas[type.ordinal()][index];
+    }
+
+    int getDepthBefore(SpanType type, int index){
+        return mDepths[type.ordinal()].getSizeBefore(index);
+    }
+
+    /**
+     * @param index Index of an open tag of type with a partner
+     * @return Index of its closing tag
+     */
+    int findClosingTag(SpanType type, int index){
+        int[] deltas = mDeltas[type.ordinal()];
+        int depth = 1;
+        while(depth > 0)
+            depth += deltas[++index];
+        return index;
+    }
+
+    /**
+     * @return Index of the outermost open tag of a span of type which contains the element at index or
+     * index if there is none
+     */
+    int findSpanStart(SpanType type, int index){
+        int[] deltas = mDeltas[type.ordinal()];
+        int depth = mDepths[type.ordinal()].getSizeBefore(index);
+        while(depth > 0)
+            depth -= deltas[--index];
+        return index;
+    }
+
+    /**
+     * @return Index behind the closing tag of the outermost span of type which contains the element at index
+     * or index + 1 if there is none
+     */
+    int findSpanEnd(SpanType type, int index){
+        int[] deltas = mDeltas[type.ordinal()];
+        int depth = mDepths[type.ordinal()].getSizeBefore(index + 1);
+        ++index;
+        while(depth > 0)
+            depth += deltas[index++];
+        return index;
+    }
+}
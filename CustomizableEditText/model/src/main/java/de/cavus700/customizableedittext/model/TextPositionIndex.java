@@ -0,0 +1,86 @@
+package de.cavus700.customizableedittext.model;
+
+import java.util.ArrayList;
+
+/**
+ * Fenwick tree over the text sizes of the elements in {@link HTMLDocument}.
+ * Tags have a size of zero so the sums are positions in the visible text.
+ * {@link SegmentedDocument} uses it for the lengths of its segments.
+ */
+class TextPositionIndex{
+    private int[] mTree = new int[1];
+    private int mCount = 0;
+
+    void rebuild(ArrayList<HTMLElement> elements){
+        mCount = elements.size();
+        if(mTree.length < mCount + 1)
+            mTree = new int[mCount + 1];
+
+        for(int iNode = 1; iNode <= mCount; ++iNode){
+            HTMLElement element = elements.get(iNode - 1);
+            mTree[iNode] = element instanceof HTMLText ? element.getSize() : 0;
+        }
+        build();
+    }
+
+    /**
+     * Drop the tree if it has room for more than maxCount elements, e.g. after a large document was cleared.
+     * The index has to be rebuilt before it is used again.
+     */
+    void trim(int maxCount){
+        if(mTree.length > maxCount + 1){
+            mTree = new int[1];
+            mCount = 0;
+        }
+    }
+
+    void rebuild(int[] sizes, int count){
+        mCount = count;
+        if(mTree.length < mCount + 1)
+            mTree = new int[mCount + 1];
+        System.arraycopy(sizes, 0, mTree, 1, count);
+        build();
+    }
+
+    /**
+     * Build in linear time by pushing each node into its parent
+     */
+    private void build(){
+        for(int iNode = 1; iNode <= mCount; ++iNode){
+            int parent = iNode + (iNode & -iNode);
+            if(parent <= mCount)
+                mTree[parent] += mTree[iNode];
+        }
+    }
+
+    void add(int index, int delta){
+        for(int iNode = index + 1; iNode <= mCount; iNode += iNode & -iNode)
+            mTree[iNode] += delta;
+    }
+
+    /**
+     * @return Sum of the sizes of all elements in front of the index
+     */
+    int getSizeBefore(int index){
+        int sum = 0;
+        for(int iNode = index; iNode > 0; iNode -= iNode & -iNode)
+            sum += mTree[iNode];
+        return sum;
+    }
+
+    /**
+     * @return Smallest index whose element ends at or after pos or the element count if there is none
+     */
+    int findIndex(int pos){
+        int index = 0;
+        int remaining = pos;
+        for(int step = Integer.highestOneBit(Math.max(mCount, 1)); step > 0; step >>= 1){
+            int next = index + step;
+            if(next <= mCount && mTree[next] < remaining){
+                index = next;
+                remaining -= mTree[next];
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,44 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class DocumentSnapshotTest {
+    private static HTMLDocument load(String html){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+        return document;
+    }
+
+    @Test
+    public void roundTrip_keepsElements() throws IOException {
+        String html = "<font color=\"#ff0000\">Th\u00e4s</font> <b>is <font color=\"#Blue12\">a</font></b> <i>demo</i> <u>\u2713</u>.<br/>";
+        HTMLDocument document = load(html);
+        HTMLDocument restored = DocumentSnapshot.fromBytes(DocumentSnapshot.toBytes(document));
+        assertEquals(document.getElements().size(), restored.getElements().size());
+        assertEquals(html, restored.getPlainText());
+    }
+
+    @Test
+    public void roundTrip_isSmallerThanHtml() {
+        String html = "<b>bold</b> <font color=\"#00ff00\">green</font> text";
+        assertTrue(DocumentSnapshot.toBytes(load(html)).length < html.length());
+    }
+
+    @Test
+    public void restored_canBeEdited() throws IOException {
+        HTMLDocument restored = DocumentSnapshot.fromBytes(DocumentSnapshot.toBytes(load("<b>ab</b>cd")));
+        restored.addText("x", 1);
+        restored.addSpan(2, 4, SpanType.italic, null);
+        assertEquals("<b>ax<i>b</i></b><i>c</i>d", restored.getPlainText());
+    }
+
+    @Test(expected = IOException.class)
+    public void read_rejectsOtherData() throws IOException {
+        DocumentSnapshot.fromBytes(Arrays.copyOf("<b>".getBytes("UTF-8"), 8));
+    }
+}
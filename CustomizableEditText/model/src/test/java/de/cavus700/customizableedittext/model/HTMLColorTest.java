@@ -0,0 +1,38 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HTMLColorTest {
+    @Test
+    public void get_internsCanonicalColors() {
+        assertSame(HTMLColor.get(true, "00ff00"), HTMLColor.get(true, "00ff00"));
+        assertSame(HTMLColor.CLOSE, HTMLColor.get(false, "00ff00"));
+    }
+
+    @Test
+    public void get_createsOtherColorsWithoutInterning() {
+        assertNotSame(HTMLColor.get(true, "00FF00"), HTMLColor.get(true, "00FF00"));
+        assertNotSame(HTMLColor.get(true, "red"), HTMLColor.get(true, "red"));
+        assertEquals("<font color=\"#red\">", HTMLColor.get(true, "red").getText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void get_openTagWithoutColor_throws() {
+        HTMLColor.get(true, null);
+    }
+
+    @Test
+    public void documentWithOtherColor_keepsItsSpans() {
+        HTMLDocument document = new HTMLDocument();
+        document.setText("<font color=\"#00FF00\">ab</font>c");
+        document.addSpan(1, 3, SpanType.bold, null);
+        assertEquals("<font color=\"#00FF00\">a<b>b</b></font><b>c</b>", document.getPlainText());
+        List<Span> spans = document.getSpans(0, 3, SpanType.color);
+        assertEquals(1, spans.size());
+        assertEquals("00FF00", spans.get(0).getColor());
+    }
+}
@@ -0,0 +1,388 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class HTMLDocumentTest {
+    private static final String DEMO = "<font color=\"#ff0000\">This</font> <b>is <font color=\"#0000ff\">a</font></b> <i>demo</i> <u>text</u>.<br/>";
+
+    private static HTMLDocument load(String html){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+        return document;
+    }
+
+    @Test
+    public void parse_keepsTextAndTags() {
+        HTMLDocument document = load(DEMO);
+        assertEquals(DEMO, document.getPlainText());
+        assertEquals("This is a demo text.\n".length(), document.length());
+    }
+
+    @Test
+    public void parse_fontTagIsNotGreedy() {
+        HTMLDocument document = load("<font color=\"#ff0000\">a</font><font color=\"#00ff00\">b</font>");
+        List<Span> spans = document.getSpans(0, 2, SpanType.color);
+        assertEquals(2, spans.size());
+        assertEquals("ff0000", spans.get(0).getColor());
+        assertEquals("00ff00", spans.get(1).getColor());
+    }
+
+    @Test
+    public void parse_keepsFontTagWithoutLongHexColorAsText() {
+        HTMLDocument document = load("<font color=\"#fff\">a</font>");
+        assertEquals("<font color=\"#fff\">a", document.getVisibleText());
+        assertTrue(document.getSpans(0, document.length(), SpanType.color).isEmpty());
+
+        document = load("<font color=\"red\">b</font>");
+        assertEquals("<font color=\"red\">b", document.getVisibleText());
+        assertTrue(document.getSpans(0, document.length(), SpanType.color).isEmpty());
+    }
+
+    @Test
+    public void setText_takesElementsOfParsedDocument() {
+        HTMLDocument parsed = load(DEMO);
+        HTMLDocument document = load("old");
+        document.addText("!", 3);
+        document.setText(parsed);
+        assertEquals(DEMO, document.getPlainText());
+        assertTrue(parsed.isEmpty());
+        assertFalse(document.canUndo());
+    }
+
+    @Test
+    public void getPlainText_removesNestedTagWithItsClosingTag() {
+        HTMLDocument document = load("<b>a<b>b</b>c</b>d");
+        assertEquals("<b>abc</b>d", document.getPlainText());
+    }
+
+    @Test
+    public void getPlainText_splitsNestedColorIntoRuns() {
+        HTMLDocument document = load("<font color=\"#ff0000\">a<font color=\"#00ff00\">b</font>c</font>");
+        assertEquals("<font color=\"#ff0000\">a</font><font color=\"#00ff00\">b</font><font color=\"#ff0000\">c</font>",
+            document.getPlainText());
+    }
+
+    @Test
+    public void getPlainText_dropsUnclosedTagAroundNestedTag() {
+        HTMLDocument document = load("<b>a<b>b</b>c");
+        assertEquals("a<b>b</b>c", document.getPlainText());
+    }
+
+    @Test
+    public void addText_afterClosingTag_isNotFormatted() {
+        HTMLDocument document = load("<b>Hello</b>");
+        document.addText("!", 5);
+        assertEquals("<b>Hello</b>!", document.getPlainText());
+    }
+
+    @Test
+    public void insertHtml_insertsStyledFragment() {
+        HTMLDocument document = load("ab");
+        document.insertHtml("<b>x</b>y", 1, 1);
+        assertEquals("a<b>x</b>yb", document.getPlainText());
+        assertEquals("axy", document.getVisibleText(0, 3));
+    }
+
+    @Test
+    public void insertHtml_balancesFragmentAndCanBeUndone() {
+        HTMLDocument document = load("<b>abc</b>d");
+        document.insertHtml("</i>x<u><b>y</b>", 1, 2);
+        assertEquals("<b>ax<u>y</u>c</b>d", document.getPlainText());
+        assertTrue(document.undo());
+        assertEquals("<b>abc</b>d", document.getPlainText());
+    }
+
+    @Test
+    public void insertHtml_keepsUnsupportedFontTagAsText() {
+        HTMLDocument document = load("ab");
+        document.insertHtml("<font color=\"#fff\">x", 1, 1);
+        assertEquals("a<font color=\"#fff\">xb", document.getVisibleText());
+    }
+
+    @Test
+    public void find_matchesAcrossTags() {
+        HTMLDocument document = load("a<b>bc</b>d");
+        List<Match> matches = document.find(Pattern.compile("cd"));
+        assertEquals(1, matches.size());
+        assertEquals(2, matches.get(0).getStart());
+        assertEquals(4, matches.get(0).getEnd());
+    }
+
+    @Test
+    public void replaceAll_keepsFormattingAndCanBeUndone() {
+        HTMLDocument document = load("<b>foo</b> bar <i>fo</i>o");
+        List<Match> matches = document.replaceAll(Pattern.compile("f(o+)"), "x$1");
+        assertEquals(2, matches.size());
+        assertEquals("xoo", matches.get(0).getText());
+        assertEquals("<b>xoo</b> bar <i>xoo</i>", document.getPlainText());
+        assertTrue(document.undo());
+        assertEquals("<b>foo</b> bar <i>fo</i>o", document.getPlainText());
+    }
+
+    @Test
+    public void removeText_acrossTags_removesTextAndTags() {
+        HTMLDocument document = load("ab<b>cd</b>ef");
+        document.removeText(1, 5);
+        assertEquals("af", document.getPlainText());
+    }
+
+    @Test
+    public void addText_afterAllTextWasRemoved() {
+        HTMLDocument document = load("a<b>b</b>");
+        document.removeText(0, 2);
+        assertEquals("", document.getPlainText());
+        document.addText("x", 0);
+        assertEquals("x", document.getPlainText());
+    }
+
+    @Test
+    public void removeText_keepsTagsWhosePartnerIsOutside() {
+        HTMLDocument document = load("ccdc<b>ba</b><font color=\"#0000ff\"></font>bcbbe<b>d<font color=\"#00ff00\"></font><br/>aadd</b>bc");
+        document.removeText(4, 13);
+        assertEquals("ccdc<b>aadd</b>bc", document.getPlainText());
+    }
+
+    @Test
+    public void removeText_fromStart_removesTagsInFrontOfText() {
+        HTMLDocument document = load("<b><i><font color=\"#ff0000\">r</i></b></font>c<br/>x");
+        document.removeText(0, 3);
+        assertEquals("x", document.getPlainText());
+    }
+
+    @Test
+    public void removeText_allTextOfTag_dropsEmptyTag() {
+        HTMLDocument document = load("a<u>b</u>c");
+        document.removeText(1, 2);
+        assertEquals("ac", document.getPlainText());
+        assertEquals("ac", load("a<b><i></i></b>c").getPlainText());
+    }
+
+    @Test
+    public void addSpan_mergesAdjacentTags() {
+        HTMLDocument document = load("abcd");
+        document.addSpan(0, 2, SpanType.bold, null);
+        document.addSpan(2, 4, SpanType.bold, null);
+        assertEquals("<b>abcd</b>", document.getPlainText());
+    }
+
+    @Test
+    public void addSpan_mergesAdjacentTagsOfSameColor() {
+        HTMLDocument document = load("abcdef");
+        document.addSpan(0, 2, SpanType.color, "ff0000");
+        document.addSpan(2, 4, SpanType.color, "ff0000");
+        document.addSpan(4, 6, SpanType.color, "00ff00");
+        assertEquals("<font color=\"#ff0000\">abcd</font><font color=\"#00ff00\">ef</font>", document.getPlainText());
+    }
+
+    @Test
+    public void addSpans_mergesNeighbouringPiecesOfSameColor() {
+        HTMLDocument document = load("a<font color=\"#00ff00\">b<font color=\"#ff0000\">c</font></font>d");
+        document.addSpans(Arrays.asList(
+            new Span(0, 1, SpanType.color, "ff0000"),
+            new Span(1, 2, SpanType.color, "ff0000"),
+            new Span(3, 4, SpanType.color, "ff0000")));
+        //The nested red piece continues the new red ones around it
+        assertEquals("<font color=\"#ff0000\">abcd</font>", document.getPlainText());
+    }
+
+    @Test
+    public void addSpans_nestsLaterSpansInside() {
+        HTMLDocument document = load("a<b>bc</b>d");
+        document.addSpans(Arrays.asList(
+            new Span(0, 4, SpanType.color, "00ff00"),
+            new Span(1, 4, SpanType.bold, null)));
+        assertEquals("<font color=\"#00ff00\">a</font><b><font color=\"#00ff00\">bc</font></b>" +
+            "<font color=\"#00ff00\"><b>d</b></font>", document.getPlainText());
+    }
+
+    @Test
+    public void undo_revertsTypedWordAndSpan() {
+        HTMLDocument document = load("a<b>b</b>");
+        document.addText("x", 1);
+        document.addText("y", 2);
+        document.addSpan(0, 2, SpanType.italic, null);
+        String formatted = document.getPlainText();
+
+        assertTrue(document.undo());
+        assertEquals("axy<b>b</b>", document.getPlainText());
+        assertTrue(document.undo());
+        assertEquals("a<b>b</b>", document.getPlainText());
+        assertFalse(document.canUndo());
+
+        assertTrue(document.redo());
+        assertTrue(document.redo());
+        assertEquals(formatted, document.getPlainText());
+    }
+
+    @Test
+    public void undo_restoresFormattedText() {
+        HTMLDocument document = load("a<b>bc</b><i>d</i>e");
+        document.removeText(1, 5);
+        assertEquals("a", document.getPlainText());
+        document.undo();
+        assertEquals("a<b>bc</b><i>d</i>e", document.getPlainText());
+    }
+
+    @Test
+    public void setHistoryLimits_dropsOldestSteps() {
+        HTMLDocument document = load("abcd");
+        document.setHistoryLimits(2, 1000);
+        document.addSpan(0, 1, SpanType.bold, null);
+        document.addSpan(1, 2, SpanType.italic, null);
+        document.addSpan(2, 3, SpanType.underline, null);
+        assertTrue(document.undo());
+        assertTrue(document.undo());
+        assertFalse(document.undo());
+        assertEquals("<b>a</b>bcd", document.getPlainText());
+    }
+
+    @Test
+    public void addText_withStyle_typesIntoOneRun() {
+        HTMLDocument document = load("ab<u>cd</u>");
+        document.addText("x", 1, EnumSet.of(SpanType.bold), null);
+        int elementCount = document.getElements().size();
+        document.addText("y", 2, EnumSet.of(SpanType.bold), null);
+        assertEquals(elementCount, document.getElements().size());
+        assertEquals("a<b>xy</b>b<u>cd</u>", document.getPlainText());
+    }
+
+    @Test
+    public void addText_withStyle_continuesOpenStyle() {
+        HTMLDocument document = load("<u>cd</u>");
+        document.addText("x", 2, EnumSet.of(SpanType.underline, SpanType.color), "00ff00");
+        assertEquals("<u>cd<font color=\"#00ff00\">x</font></u>", document.getPlainText());
+    }
+
+    @Test
+    public void addText_withStyle_ignoresTagWithoutPartner() {
+        //The bold tag is never closed, so it doesn't format the typed text
+        HTMLDocument document = load("<b>ab");
+        document.addText("x", 2, EnumSet.of(SpanType.bold), null);
+        assertEquals(1, document.getSpans(2, 3, SpanType.bold).size());
+    }
+
+    @Test
+    public void getSpans_clipsToRange() {
+        HTMLDocument document = load("a<u>bcde</u>f");
+        List<Span> spans = document.getSpans(2, 4, SpanType.underline);
+        assertEquals(1, spans.size());
+        assertEquals(2, spans.get(0).getStart());
+        assertEquals(4, spans.get(0).getEnd());
+    }
+
+    @Test
+    public void getSpans_findsSpanOpenedBeforeRange() {
+        HTMLDocument document = load("<b>one</b> <b>two <u>three</u> four</b> five");
+        List<Span> spans = document.getSpans(10, 20, SpanType.bold);
+        assertEquals(1, spans.size());
+        assertEquals(10, spans.get(0).getStart());
+        assertEquals(18, spans.get(0).getEnd());
+    }
+
+    @Test
+    public void writePlainText_matchesGetPlainText() throws Exception {
+        HTMLDocument document = load(DEMO + "second line");
+        StringWriter writer = new StringWriter();
+        document.writePlainText(writer);
+        assertEquals(document.getPlainText(), writer.toString());
+    }
+
+    @Test
+    public void metricsListener_reportsNestedOperations() {
+        final List<String> events = new ArrayList<>();
+        HTMLDocument document = new HTMLDocument();
+        document.setMetricsListener(new MetricsListener() {
+            @Override
+            public void onStart(Metric metric) {
+                events.add("start " + metric);
+            }
+
+            @Override
+            public void onFinish(Metric metric, long durationNanos, int count, int elementCount, int textLength) {
+                events.add(metric + " " + count + " " + textLength);
+            }
+        });
+        document.setText("<b>ab</b>c");
+        document.getPlainText();
+        assertEquals(Arrays.asList("start parse", "parse 10 3", "start getPlainText", "start cleanUp",
+            "cleanUp 5 3", "getPlainText 3 3"), events);
+    }
+
+    @Test
+    public void replaceContent_changesOnlyTheDifferenceAndCanBeUndone() {
+        HTMLDocument document = load("<b>first</b> line<br/>second <u>line</u>");
+        String before = document.getPlainText();
+        String after = "<b>first</b> word<br/>second <i>new</i> <u>line</u>";
+        assertTrue(document.replaceContent(after));
+        assertEquals(load(after).getPlainText(), document.getPlainText());
+        assertFalse(document.replaceContent(after));
+        assertTrue(document.undo());
+        assertEquals(before, document.getPlainText());
+    }
+
+    @Test
+    public void removeSpan_splitsTheSpan() {
+        HTMLDocument document = load("a<b>bcde</b>f");
+        document.removeSpan(2, 4, SpanType.bold);
+        assertEquals("a<b>b</b>cd<b>e</b>f", document.getPlainText());
+        assertTrue(document.undo());
+        assertEquals("a<b>bcde</b>f", document.getPlainText());
+    }
+
+    @Test
+    public void addSpan_replacesOverlappedColors() {
+        HTMLDocument document = load("abcd");
+        document.addSpan(0, 4, SpanType.color, "ff0000");
+        document.addSpan(1, 3, SpanType.color, "00ff00");
+        document.addSpan(0, 4, SpanType.color, "0000ff");
+        assertEquals("<font color=\"#0000ff\">abcd</font>", document.getPlainText());
+    }
+
+    @Test
+    public void toggleSpan_removesSpanOfWholeRange() {
+        HTMLDocument document = load("a<i>bc</i>d");
+        document.toggleSpan(1, 3, SpanType.italic, null);
+        assertEquals("abcd", document.getPlainText());
+        document.toggleSpan(0, 2, SpanType.italic, null);
+        assertEquals("<i>ab</i>cd", document.getPlainText());
+    }
+
+    @Test
+    public void spanWithoutColor_isRejected() {
+        HTMLDocument document = load("a<i>bc</i>d");
+        try {
+            document.toggleSpan(0, 2, SpanType.color, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+        try {
+            document.addSpans(Arrays.asList(new Span(0, 1, SpanType.bold, null), new Span(1, 2, SpanType.color, null)));
+            fail();
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+        assertEquals("a<i>bc</i>d", document.getPlainText());
+        assertFalse(document.canUndo());
+    }
+
+    @Test
+    public void getSpansAt_usesInnerColor() {
+        HTMLDocument document = load("<font color=\"#ff0000\">a<font color=\"#00ff00\">b</font>c</font><u>d</u>");
+        List<Span> spans = document.getSpansAt(1, 4);
+        assertEquals(3, spans.size());
+        assertEquals("00ff00", spans.get(0).getColor());
+        assertEquals(2, spans.get(0).getEnd());
+        assertEquals("ff0000", spans.get(1).getColor());
+        assertEquals(SpanType.underline, spans.get(2).getType());
+    }
+}
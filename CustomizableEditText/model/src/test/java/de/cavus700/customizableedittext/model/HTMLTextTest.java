@@ -0,0 +1,29 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HTMLTextTest {
+    @Test
+    public void getText_followsEveryEdit() {
+        HTMLText text = new HTMLText("hello");
+        assertEquals("hello", text.getText());
+        text.insert(5, " world");
+        assertEquals("hello world", text.getText());
+        text.delete(0, 6);
+        assertEquals("world", text.getText());
+        assertEquals(5, text.getSize());
+    }
+
+    @Test
+    public void appendTo_skipsGap() {
+        HTMLText text = new HTMLText("ad");
+        //Moves the gap into the middle of the text
+        text.insert(1, "bc");
+        StringBuilder out = new StringBuilder("<");
+        text.appendTo(out);
+        assertEquals("<abcd", out.toString());
+        assertEquals("bc", text.substring(1, 3));
+    }
+}
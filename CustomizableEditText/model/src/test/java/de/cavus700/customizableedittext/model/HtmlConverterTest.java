@@ -0,0 +1,73 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class HtmlConverterTest {
+    @Test
+    public void convert_convertsBetweenTextAndHtml() {
+        HtmlConverter converter = new HtmlConverter();
+        assertEquals("ab\nc", converter.convert("<b>a</b>b<br/><i>c</i>", HtmlConverter.Conversion.htmlToText));
+        assertEquals("a<br/>b", converter.convert("a\nb", HtmlConverter.Conversion.textToHtml));
+        assertEquals("<b>abcd</b>", converter.convert("<b>a<b>b<b>c</b></b>d</b>", HtmlConverter.Conversion.normalizeHtml));
+        assertEquals("", converter.convert(null, HtmlConverter.Conversion.textToHtml));
+    }
+
+    @Test
+    public void convert_smallTextAfterLargeOne() {
+        HtmlConverter converter = new HtmlConverter();
+        StringBuilder large = new StringBuilder();
+        for(int iLine = 0; iLine < 20000; ++iLine)
+            large.append("<b>line</b> ").append(iLine).append("<br/>");
+        String normalized = converter.convert(large.toString(), HtmlConverter.Conversion.normalizeHtml);
+        assertEquals(large.toString(), normalized);
+        assertEquals("<u>ab</u>", converter.convert("<u>a</u><u>b</u>", HtmlConverter.Conversion.normalizeHtml));
+        assertEquals("ab", converter.convert("<u>a</u>b", HtmlConverter.Conversion.htmlToText));
+    }
+
+    @Test
+    public void convertAll_keepsOrderOnSeveralThreads() throws Exception {
+        List<String> texts = new ArrayList<>();
+        for(int iText = 0; iText < 100; ++iText)
+            texts.add("<u>note " + iText + "</u><br/>line");
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<String> results = new HtmlConverter(executor, 3).convertAll(texts, HtmlConverter.Conversion.htmlToText);
+            assertEquals(texts.size(), results.size());
+            for(int iText = 0; iText < texts.size(); ++iText)
+                assertEquals("note " + iText + "\nline", results.get(iText));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void convertAll_badTextDoesNotAbortOthers() throws Exception {
+        final List<String> texts = Arrays.asList("<b>a</b>", "<font color=\"#fff\">b</font>", "bad", "<i>c</i>");
+        //Fails for one text like a conversion which throws
+        List<String> input = new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                if(texts.get(index).equals("bad"))
+                    throw new IllegalStateException();
+                return texts.get(index);
+            }
+
+            @Override
+            public int size() {
+                return texts.size();
+            }
+        };
+        List<String> results = new HtmlConverter().convertAll(input, HtmlConverter.Conversion.htmlToText);
+        assertEquals(Arrays.asList("a", "<font color=\"#fff\">b", null, "c"), results);
+    }
+}
@@ -0,0 +1,93 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PendingTextChangeTest {
+    /**
+     * Replace count characters at start of view like an EditText which reports to change
+     */
+    private static void replace(StringBuilder view, PendingTextChange change, int start, int count, String text){
+        change.beforeChange(view, start, count);
+        view.replace(start, start + count, text);
+        change.afterChange(count, text.length());
+    }
+
+    /**
+     * Apply the pending change to document like the view applies it to its document
+     */
+    private static void flush(StringBuilder document, StringBuilder view, PendingTextChange change){
+        if(!change.isPending())
+            return;
+        change.finish(view);
+        document.replace(change.getStart(), change.getOldEnd(), view.substring(change.getStart(), change.getNewEnd()));
+    }
+
+    @Test
+    public void composedWord_isMergedIntoOneInsertion() {
+        StringBuilder view = new StringBuilder("a  b");
+        PendingTextChange change = new PendingTextChange();
+        replace(view, change, 2, 0, "h");
+        replace(view, change, 2, 1, "he");
+        replace(view, change, 2, 2, "hey");
+        assertFalse(change.isSeparate(2, 3));
+
+        change.finish(view);
+        assertEquals(2, change.getStart());
+        assertEquals(2, change.getOldEnd());
+        assertEquals(5, change.getNewEnd());
+        assertFalse(change.isPending());
+    }
+
+    @Test
+    public void autocorrect_onlyReplacesChangedCharacters() {
+        StringBuilder view = new StringBuilder("say teh word");
+        PendingTextChange change = new PendingTextChange();
+        replace(view, change, 4, 3, "the");
+
+        change.finish(view);
+        assertEquals(5, change.getStart());
+        assertEquals(7, change.getOldEnd());
+        assertEquals(7, change.getNewEnd());
+    }
+
+    @Test
+    public void changeWithUnchangedTextInBetween_isSeparate() {
+        StringBuilder view = new StringBuilder("one two three");
+        PendingTextChange change = new PendingTextChange();
+        replace(view, change, 0, 3, "1");
+        assertTrue(change.isSeparate(3, 3));
+        //Touching the end of the pending range
+        assertFalse(change.isSeparate(1, 1));
+        assertFalse(new PendingTextChange().isSeparate(3, 3));
+    }
+
+    @Test
+    public void randomOverlappingBursts_keepDocumentEqualToView() {
+        Random random = new Random(17);
+        StringBuilder document = new StringBuilder("The quick brown fox jumps over the lazy dog");
+        StringBuilder view = new StringBuilder(document);
+        PendingTextChange change = new PendingTextChange();
+
+        for(int iBurst = 0; iBurst < 2000; ++iBurst){
+            //An IME edits around one position, e.g. composing, autocorrecting or deleting a word
+            int pos = random.nextInt(view.length() + 1);
+            int edits = 1 + random.nextInt(5);
+            for(int iEdit = 0; iEdit < edits; ++iEdit){
+                int start = Math.max(0, Math.min(view.length(), pos + random.nextInt(7) - 3));
+                int count = Math.min(view.length() - start, random.nextInt(4));
+                StringBuilder text = new StringBuilder();
+                for(int iChar = random.nextInt(4); iChar > 0; --iChar)
+                    text.append((char) ('a' + random.nextInt(3)));
+                if(change.isSeparate(start, count))
+                    flush(document, view, change);
+                replace(view, change, start, count, text.toString());
+            }
+            flush(document, view, change);
+            assertEquals("burst " + iBurst, view.toString(), document.toString());
+        }
+    }
+}
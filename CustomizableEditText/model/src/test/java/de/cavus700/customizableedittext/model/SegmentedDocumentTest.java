@@ -0,0 +1,262 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SegmentedDocumentTest {
+    private static final String HTML = "<b>Bold</b> line<br/>plain <i>line</i><br/><u>last</u>";
+
+    private static SegmentedDocument load(String html){
+        SegmentedDocument document = new SegmentedDocument();
+        document.setText(html);
+        return document;
+    }
+
+    /**
+     * Styles of each character as sorted strings like "bold" or "color#ff0000"
+     */
+    private static List<String> getStyles(int length, SpanDocumentView document){
+        ArrayList<List<String>> styles = new ArrayList<>();
+        for(int iChar = 0; iChar < length; ++iChar)
+            styles.add(new ArrayList<String>());
+        for(SpanType type: SpanType.values()){
+            for(Span span: document.getSpans(0, length, type)){
+                for(int iChar = span.getStart(); iChar < span.getEnd(); ++iChar)
+                    styles.get(iChar).add(type + (span.getColor() != null ? "#" + span.getColor() : ""));
+            }
+        }
+        ArrayList<String> result = new ArrayList<>();
+        for(List<String> charStyles: styles){
+            Collections.sort(charStyles);
+            result.add(charStyles.toString());
+        }
+        return result;
+    }
+
+    private interface SpanDocumentView{
+        List<Span> getSpans(int start, int end, SpanType type);
+    }
+
+    private static void assertSameDocument(String message, final HTMLDocument expected, final SegmentedDocument actual,
+                                           boolean isSameHtml){
+        assertEquals(message, expected.getVisibleText(), actual.getVisibleText());
+        if(isSameHtml)
+            assertEquals(message, expected.getPlainText(), actual.getPlainText());
+        int length = expected.length();
+        assertEquals(message, getStyles(length, new SpanDocumentView() {
+            @Override
+            public List<Span> getSpans(int start, int end, SpanType type) {
+                return expected.getSpans(start, end, type);
+            }
+        }), getStyles(length, new SpanDocumentView() {
+            @Override
+            public List<Span> getSpans(int start, int end, SpanType type) {
+                return actual.getSpans(start, end, type);
+            }
+        }));
+    }
+
+    @Test
+    public void setText_splitsParagraphsWithoutParsing() {
+        SegmentedDocument document = load(HTML);
+        assertEquals(3, document.getSegmentCount());
+        assertEquals(0, document.getParsedSegmentCount());
+
+        HTMLDocument whole = new HTMLDocument();
+        whole.setText(HTML);
+        assertEquals(whole.length(), document.length());
+        assertEquals(whole.getPlainText(), document.getPlainText());
+        assertEquals(0, document.getParsedSegmentCount());
+    }
+
+    @Test
+    public void setText_keepsOpenTagsInOneSegment() {
+        SegmentedDocument document = load("<b>one<br/>two</b><br/>three");
+        assertEquals(2, document.getSegmentCount());
+    }
+
+    @Test
+    public void addText_parsesOnlyEditedSegment() {
+        SegmentedDocument document = load(HTML);
+        document.addText("!", 20);
+        assertEquals(1, document.getParsedSegmentCount());
+        assertEquals("<b>Bold</b> line<br/>plain <i>line</i>!<br/><u>last</u>", document.getPlainText());
+    }
+
+    @Test
+    public void removeText_acrossParagraphs_joinsSegments() {
+        SegmentedDocument document = load(HTML);
+        document.removeText(7, 16);
+        assertEquals(2, document.getSegmentCount());
+        assertEquals("<b>Bold</b> li<i>line</i><br/><u>last</u>", document.getPlainText());
+    }
+
+    @Test
+    public void addText_atParagraphStart_addsToThatParagraph() {
+        SegmentedDocument document = load(HTML);
+        document.addText("x", 10);
+        assertEquals("<b>Bold</b> line<br/>xplain <i>line</i><br/><u>last</u>", document.getPlainText());
+        assertEquals(3, document.getSegmentCount());
+    }
+
+    @Test
+    public void addText_lineBreak_splitsSegment() {
+        SegmentedDocument document = load(HTML);
+        document.addText("\n", 16);
+        assertEquals(4, document.getSegmentCount());
+        //Inside a tag the paragraph goes on
+        document.addText("\n", 2);
+        assertEquals(4, document.getSegmentCount());
+        assertEquals("<b>Bo<br/>ld</b> line<br/>plain <br/><i>line</i><br/><u>last</u>", document.getPlainText());
+
+        document.addText("!", 18);
+        assertEquals("<b>Bo<br/>ld</b> line<br/>plain <br/>!<i>line</i><br/><u>last</u>", document.getPlainText());
+    }
+
+    @Test
+    public void removeText_lineBreakAtSegmentEnd_joinsNextSegment() {
+        SegmentedDocument document = load(HTML);
+        document.removeText(9, 10);
+        assertEquals(2, document.getSegmentCount());
+        assertEquals("<b>Bold</b> lineplain <i>line</i><br/><u>last</u>", document.getPlainText());
+
+        document.addText("\n", 9);
+        assertEquals(3, document.getSegmentCount());
+        assertEquals(HTML, document.getPlainText());
+    }
+
+    @Test
+    public void removeText_allText_keepsOneSegment() {
+        SegmentedDocument document = load(HTML);
+        document.removeText(0, document.length());
+        assertEquals(1, document.getSegmentCount());
+        assertEquals(0, document.length());
+        document.addText("new", 0);
+        assertEquals("new", document.getPlainText());
+    }
+
+    @Test
+    public void getVisibleText_doesNotParse() {
+        SegmentedDocument document = load(HTML + "<br/>a < b");
+        HTMLDocument whole = new HTMLDocument();
+        whole.setText(HTML + "<br/>a < b");
+        assertEquals(whole.getVisibleText(), document.getVisibleText());
+        assertEquals(0, document.getParsedSegmentCount());
+    }
+
+    @Test
+    public void parse_returnsRangesOfNewlyParsedSegments() {
+        SegmentedDocument document = load(HTML);
+        List<int[]> ranges = document.parse(12, 12);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new int[]{10, 21}, ranges.get(0));
+
+        //The segment ending at start and the one containing end
+        ranges = document.parse(10, 21);
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new int[]{0, 10}, ranges.get(0));
+        assertArrayEquals(new int[]{21, 25}, ranges.get(1));
+        assertTrue(document.parse(0, 25).isEmpty());
+    }
+
+    @Test
+    public void getSegmentStartAndEnd() {
+        SegmentedDocument document = load(HTML);
+        assertEquals(10, document.getSegmentStart(10));
+        assertEquals(10, document.getSegmentStart(20));
+        assertEquals(10, document.getSegmentEnd(10));
+        assertEquals(21, document.getSegmentEnd(11));
+        assertEquals(25, document.getSegmentEnd(25));
+    }
+
+    @Test
+    public void getSpans_addsSegmentOffset() {
+        SegmentedDocument document = load(HTML);
+        List<Span> spans = document.getSpans(22, 25, SpanType.underline);
+        assertEquals(1, spans.size());
+        assertEquals(22, spans.get(0).getStart());
+        assertEquals(25, spans.get(0).getEnd());
+        assertEquals(1, document.getParsedSegmentCount());
+    }
+
+    @Test
+    public void addSpan_overSeveralParagraphs_joinsThemIntoOneSegment() {
+        SegmentedDocument document = load("ab<br/>cd<br/>ef");
+        assertEquals(3, document.getSegmentCount());
+        document.addSpan(1, 4, SpanType.bold, null);
+        assertEquals("a<b>b<br/>c</b>d<br/>ef", document.getPlainText());
+        assertEquals(2, document.getSegmentCount());
+
+        //Adjacent to the span at the line break it continues the same tag
+        document.addSpan(4, 7, SpanType.bold, null);
+        assertEquals("a<b>b<br/>cd<br/>e</b>f", document.getPlainText());
+        assertEquals(1, document.getSegmentCount());
+    }
+
+    @Test
+    public void addText_atStartOfTaggedParagraph_staysOutsideOfItsTags() {
+        SegmentedDocument document = load("a<br/><b>b</b>");
+        document.addText("x", 2);
+        assertEquals("a<br/>x<b>b</b>", document.getPlainText());
+        assertEquals(2, document.getSegmentCount());
+        document.addText("y", 3);
+        assertEquals("a<br/>xy<b>b</b>", document.getPlainText());
+    }
+
+    @Test
+    public void randomEdits_matchWholeDocument() {
+        String[] parts = {"plain", "<b>bold</b>", "<i>it<u>al</u></i>", "<font color=\"#ff0000\">red</font>", "<br/>",
+            "<br/>", "<b>x<br/>y</b>"};
+        String[] texts = {"a", "bc", "\n", "d\ne", "\n\n"};
+        String[] colors = {"ff0000", "00ff00"};
+        for(int seed = 0; seed < 30; ++seed){
+            Random random = new Random(seed);
+            StringBuilder html = new StringBuilder();
+            for(int iPart = 0; iPart < 12; ++iPart)
+                html.append(parts[random.nextInt(parts.length)]);
+            HTMLDocument expected = new HTMLDocument();
+            expected.setText(html.toString());
+            //Edits next to tags depend on whether the text is normalized, the segments are normalized when parsed
+            expected.getPlainText();
+            SegmentedDocument actual = load(html.toString());
+            //Paragraphs are normalized on their own, so after a span the tags can be split differently
+            boolean isSameHtml = true;
+
+            for(int step = 0; step < 60; ++step){
+                String message = "seed " + seed + " step " + step;
+                int length = expected.length();
+                int start = random.nextInt(length + 1);
+                int end = Math.min(length, start + random.nextInt(6));
+                switch(random.nextInt(4)){
+                    case 0:
+                    case 1:
+                        String text = texts[random.nextInt(texts.length)];
+                        expected.addText(text, start);
+                        actual.addText(text, start);
+                        break;
+                    case 2:
+                        expected.removeText(start, end);
+                        actual.removeText(start, end);
+                        break;
+                    default:
+                        SpanType type = SpanType.values()[random.nextInt(SpanType.values().length)];
+                        String color = type == SpanType.color ? colors[random.nextInt(colors.length)] : null;
+                        expected.addSpan(start, end, type, color);
+                        actual.addSpan(start, end, type, color);
+                        isSameHtml = false;
+                        break;
+                }
+                //Both are normalized again, like after saving
+                expected.getPlainText();
+                actual.getPlainText();
+                assertSameDocument(message, expected, actual, isSameHtml);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SpanDocumentTest {
+    private static SpanDocument load(String html){
+        SpanDocument document = new SpanDocument();
+        document.setText(html);
+        return document;
+    }
+
+    @Test
+    public void parse_keepsTextAndTags() {
+        String html = "<font color=\"#ff0000\">This</font> <b>is</b> <i>a</i> <u>demo</u>.<br/>";
+        SpanDocument document = load(html);
+        assertEquals("This is a demo.\n", document.getText());
+        assertEquals(html, document.toHtml());
+    }
+
+    @Test
+    public void toHtml_nestsOverlappingSpans() {
+        SpanDocument document = load("abcd");
+        document.addSpan(0, 3, SpanType.bold, null);
+        document.addSpan(1, 4, SpanType.italic, null);
+        assertEquals("<b>a<i>bc</i></b><i>d</i>", document.toHtml());
+    }
+
+    @Test
+    public void addText_growsSpanOnlyInside() {
+        SpanDocument document = load("<b>Hello</b>");
+        document.addText("!", 5);
+        document.addText("x", 2);
+        assertEquals("<b>Hexllo</b>!", document.toHtml());
+    }
+
+    @Test
+    public void removeText_acrossTags_mergesTouchingSpans() {
+        SpanDocument document = load("<b>ab</b>cd<u>e</u><b>fg</b>");
+        document.removeText(1, 6);
+        assertEquals("<b>ag</b>", document.toHtml());
+    }
+
+    @Test
+    public void addSpan_replacesOtherColor() {
+        SpanDocument document = load("<font color=\"#ff0000\">abcd</font>");
+        document.addSpan(1, 3, SpanType.color, "00ff00");
+        List<Span> spans = document.getSpans(0, 4, SpanType.color);
+        assertEquals(3, spans.size());
+        assertEquals("00ff00", spans.get(1).getColor());
+        assertEquals(1, spans.get(1).getStart());
+        assertEquals(3, spans.get(1).getEnd());
+    }
+
+    @Test
+    public void getStylesAt_returnsSpansAtOffset() {
+        SpanDocument document = load("<b>a<i>b</i></b>c");
+        assertEquals(2, document.getStylesAt(1).size());
+        assertTrue(document.getStylesAt(2).isEmpty());
+    }
+}
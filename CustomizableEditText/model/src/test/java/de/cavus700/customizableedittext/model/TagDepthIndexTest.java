@@ -0,0 +1,35 @@
+package de.cavus700.customizableedittext.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class TagDepthIndexTest {
+    private static TagDepthIndex build(String html){
+        HTMLDocument document = new HTMLDocument();
+        document.setText(html);
+        TagDepthIndex depths = new TagDepthIndex();
+        depths.rebuild(new ArrayList<>(document.getElements()));
+        return depths;
+    }
+
+    @Test
+    public void findClosingTag_skipsNestedSpans() {
+        //"" <b> "a" <b> "b" </b> "c" </b> ""
+        TagDepthIndex depths = build("<b>a<b>b</b>c</b>");
+        assertEquals(7, depths.findClosingTag(SpanType.bold, 1));
+        assertEquals(5, depths.findClosingTag(SpanType.bold, 3));
+    }
+
+    @Test
+    public void getDepthBefore_ignoresTagsWithoutPartner() {
+        //"" <b> "a" <b> "b" </b> "c"
+        TagDepthIndex depths = build("<b>a<b>b</b>c");
+        assertEquals(0, depths.getDelta(SpanType.bold, 1));
+        assertEquals(0, depths.getDepthBefore(SpanType.bold, 3));
+        assertEquals(1, depths.getDepthBefore(SpanType.bold, 4));
+        assertEquals(0, depths.getDepthBefore(SpanType.bold, 6));
+    }
+}